@@ -21,6 +21,9 @@
 
   <xsl:output method="xml" version="1.0" encoding="UTF-8" indent="yes" xalan:indent-amount="4" standalone="no" />
 
+  <!-- Persist the feed ping state of the backfill cache across restarts, off by default -->
+  <xsl:param name="hawkular.backfill.store" select="'false'"/>
+
   <xsl:template match="//*[local-name()='config']/*[local-name()='supplement' and @name='default']/*[local-name()='replacement' and @placeholder='CACHE-CONTAINERS']">
     <xsl:copy>
       <xsl:apply-templates select="node()|comment()|@*" />
@@ -34,7 +37,17 @@
         <local-cache name="globalActions"/>
       </cache-container>
       <cache-container name="hawkular-services" default-cache="backfill" statistics-enabled="true">
-        <local-cache name="backfill"/>
+        <xsl:choose>
+          <xsl:when test="$hawkular.backfill.store = 'true'">
+            <!-- not preloaded: the entries are deployment classes, only read once the deployment uses the cache -->
+            <local-cache name="backfill">
+              <file-store passivation="false" preload="false" purge="false"/>
+            </local-cache>
+          </xsl:when>
+          <xsl:otherwise>
+            <local-cache name="backfill"/>
+          </xsl:otherwise>
+        </xsl:choose>
       </cache-container>
       <cache-container name="hawkular-metrics" default-cache="locks" statistics-enabled="true">
         <local-cache name="locks"/>
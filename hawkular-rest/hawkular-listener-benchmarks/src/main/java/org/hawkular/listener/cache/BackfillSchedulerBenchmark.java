@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+import org.infinispan.manager.DefaultCacheManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the {@link BackfillScheduler} engines, the executor one being the former one job per feed engine:
+ * <ul>
+ * <li>{@code ping}: the cost added to every feed ping, with all the feeds watched.</li>
+ * <li>{@code detect}: the time to detect all the feeds going quiet at once, 100 ms from now. The lateness past those
+ * 100 ms is the precision of the engine (tick, period or reaper interval) plus the cost of the checks.</li>
+ * </ul>
+ * <pre>
+ * java -jar target/benchmarks.jar BackfillSchedulerBenchmark -prof gc
+ * </pre>
+ *
+ * @author Joel Takvorian
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BackfillSchedulerBenchmark {
+
+    private static final int THREADS = 10;
+    private static final long PRECISION_MS = 10L;
+    private static final long QUIET_MS = 100L;
+
+    @Param({ "wheel", "deadline", "executor", "expiration" })
+    public String engine;
+
+    @Param({ "10000" })
+    public int feeds;
+
+    private DefaultCacheManager cacheManager;
+    private BackfillScheduler scheduler;
+    private CacheKey[] keys;
+    private volatile CountDownLatch detected;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        int next(int bound) {
+            int result = next;
+            next = (result + 1 == bound) ? 0 : result + 1;
+            return result;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cacheManager = new DefaultCacheManager();
+        scheduler = createScheduler();
+        keys = new CacheKey[feeds];
+        for (int i = 0; i < feeds; ++i) {
+            keys[i] = new CacheKey("tenant-" + (i % 10), BackfillCacheManager.FEED_PREFIX + "feed-" + i);
+        }
+    }
+
+    private BackfillScheduler createScheduler() {
+        BackfillScheduler.FeedCheck check = key -> {
+            CountDownLatch latch = detected;
+            if (null != latch) {
+                latch.countDown();
+            }
+            return -1L;
+        };
+        switch (engine) {
+            case "deadline":
+                return new DeadlineBackfillScheduler(THREADS, check);
+            case "executor":
+                return new ExecutorBackfillScheduler(THREADS, QUIET_MS, check);
+            case "expiration":
+                return new ExpirationBackfillScheduler(cacheManager, THREADS, PRECISION_MS, check);
+            default:
+                return new HashedWheelBackfillScheduler(THREADS, PRECISION_MS, 512, check);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        scheduler.shutdown();
+        cacheManager.stop();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Watched {
+        @Setup(Level.Iteration)
+        public void setUp(BackfillSchedulerBenchmark benchmark) {
+            long deadline = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1L);
+            for (CacheKey key : benchmark.keys) {
+                benchmark.scheduler.schedule(key, deadline);
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown(BackfillSchedulerBenchmark benchmark) {
+            for (CacheKey key : benchmark.keys) {
+                benchmark.scheduler.cancel(key);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void ping(Watched watched, Cursor cursor) {
+        int i = cursor.next(feeds);
+        scheduler.ping(keys[i], System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1L));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, batchSize = 1)
+    @Measurement(iterations = 10, batchSize = 1)
+    public void detect() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(feeds);
+        detected = latch;
+        long deadline = System.currentTimeMillis() + QUIET_MS;
+        for (CacheKey key : keys) {
+            scheduler.schedule(key, deadline);
+        }
+        if (!latch.await(1L, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Feeds not detected: " + latch.getCount());
+        }
+        detected = null;
+    }
+}
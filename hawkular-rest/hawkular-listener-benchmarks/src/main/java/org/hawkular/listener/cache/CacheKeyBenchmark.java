@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+import org.hawkular.listener.cache.BackfillCacheManager.CacheValue;
+import org.infinispan.manager.DefaultCacheManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link CacheKey} hashing and equality, as used by every cache, scheduler and map lookup of a ping:
+ * <ul>
+ * <li>{@code newKey}: allocating a key and hashing it, what a lookup without interning costs.</li>
+ * <li>{@code equalKeys}: comparing equal keys that are not the same instance.</li>
+ * <li>{@code mapLookup}: a hash map lookup with a fresh, equal key.</li>
+ * <li>{@code internKey}: {@link BackfillCacheManager#internKey(String, String)}, the lookup done by every ping.</li>
+ * </ul>
+ * <pre>
+ * java -jar target/benchmarks.jar CacheKeyBenchmark -prof gc
+ * </pre>
+ *
+ * @author Joel Takvorian
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheKeyBenchmark {
+
+    @Param({ "10000" })
+    public int feeds;
+
+    private DefaultCacheManager cacheManager;
+    private BackfillCacheManager manager;
+    private String[] tenantIds;
+    private String[] metricIds;
+    private CacheKey[] keys;
+    private CacheKey[] copies;
+    private Map<CacheKey, CacheValue> map;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        int next(int bound) {
+            int result = next;
+            next = (result + 1 == bound) ? 0 : result + 1;
+            return result;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cacheManager = new DefaultCacheManager();
+        manager = new BackfillCacheManager(cacheManager, cacheManager.getCache("backfill"));
+        tenantIds = new String[feeds];
+        metricIds = new String[feeds];
+        keys = new CacheKey[feeds];
+        copies = new CacheKey[feeds];
+        map = new HashMap<>();
+        for (int i = 0; i < feeds; ++i) {
+            tenantIds[i] = "tenant-" + (i % 10);
+            metricIds[i] = BackfillCacheManager.FEED_PREFIX + "feed-" + i;
+            keys[i] = manager.internKey(tenantIds[i], metricIds[i]);
+            copies[i] = new CacheKey(new String(tenantIds[i]), new String(metricIds[i]));
+            map.put(keys[i], new CacheValue(0L, 0L));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cacheManager.stop();
+    }
+
+    @Benchmark
+    public int newKey(Cursor cursor) {
+        int i = cursor.next(feeds);
+        return new CacheKey(tenantIds[i], metricIds[i]).hashCode();
+    }
+
+    @Benchmark
+    public boolean equalKeys(Cursor cursor) {
+        int i = cursor.next(feeds);
+        return keys[i].equals(copies[i]);
+    }
+
+    @Benchmark
+    public CacheValue mapLookup(Cursor cursor) {
+        int i = cursor.next(feeds);
+        return map.get(copies[i]);
+    }
+
+    @Benchmark
+    public CacheKey internKey(Cursor cursor) {
+        int i = cursor.next(feeds);
+        return manager.internKey(tenantIds[i], metricIds[i]);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hawkular.metrics.core.service.MetricsService;
+import org.hawkular.metrics.core.service.Order;
+import org.hawkular.metrics.model.DataPoint;
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.MetricType;
+import org.hawkular.metrics.model.Tenant;
+
+import rx.Observable;
+
+/**
+ * A {@link MetricsService} serving the inventory of a single tenant from memory, as stored by the agents: a string
+ * metric per inventory, tagged with its module, feed and type, holding the chunks of the inventory. Only the calls
+ * made by the listener are implemented, the others fail. The regex tag filters are ignored, the metrics matching
+ * the module, feed and type tags are all returned.
+ *
+ * @author Joel Takvorian
+ */
+final class InMemoryMetricsService implements InvocationHandler {
+
+    private final String tenantId;
+
+    /**
+     * "module:inventory,feed:{feedId},type:{type}" -> metrics
+     */
+    private final Map<String, List<Metric<String>>> metricsByTags = new ConcurrentHashMap<>();
+
+    /**
+     * metric name -> datapoints, newest first
+     */
+    private final Map<String, List<DataPoint<String>>> dataPoints = new ConcurrentHashMap<>();
+
+    private final AtomicLong writtenMetrics = new AtomicLong();
+
+    private InMemoryMetricsService(String tenantId) {
+        this.tenantId = tenantId;
+    }
+
+    static InMemoryMetricsService forTenant(String tenantId) {
+        return new InMemoryMetricsService(tenantId);
+    }
+
+    MetricsService asMetricsService() {
+        return (MetricsService) Proxy.newProxyInstance(MetricsService.class.getClassLoader(),
+                new Class<?>[] { MetricsService.class }, this);
+    }
+
+    /**
+     * Store an inventory.
+     *
+     * @param type "r" for a resource, "mt" for a metric type...
+     * @param chunks newest (master) first
+     */
+    void addInventory(String feedId, String type, String name, List<DataPoint<String>> chunks) {
+        Metric<String> metric = new Metric<>(new MetricId<>(tenantId, MetricType.STRING, name),
+                Collections.emptyList());
+        metricsByTags.computeIfAbsent(tags(feedId, type), t -> new ArrayList<>()).add(metric);
+        dataPoints.put(name, chunks);
+    }
+
+    /**
+     * @return the number of metrics written by addDataPoints, e.g. the backfilled avails
+     */
+    long getWrittenMetrics() {
+        return writtenMetrics.get();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "getTenants":
+                return Observable.just(new Tenant(tenantId));
+            case "findMetricsWithFilters":
+                return findMetricsWithFilters((String) args[0], (String) args[2]);
+            case "findStringData":
+                @SuppressWarnings("unchecked")
+                MetricId<String> id = (MetricId<String>) args[0];
+                return findStringData(id, (Long) args[1], (Long) args[2], (Integer) args[4], (Order) args[5]);
+            case "addDataPoints":
+                return ((Observable<?>) args[1])
+                        .doOnNext(metric -> writtenMetrics.incrementAndGet())
+                        .ignoreElements()
+                        .map(metric -> (Void) null);
+            case "toString":
+                return "InMemoryMetricsService[" + tenantId + "]";
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                throw new UnsupportedOperationException(method.toString());
+        }
+    }
+
+    private Observable<Metric<String>> findMetricsWithFilters(String tenantId, String tags) {
+        if (!this.tenantId.equals(tenantId)) {
+            return Observable.empty();
+        }
+        Map<String, String> filters = new HashMap<>();
+        for (String tag : tags.split(",")) {
+            int colon = tag.indexOf(':');
+            filters.put(tag.substring(0, colon), tag.substring(colon + 1));
+        }
+        String feedId = filters.get("feed");
+        String type = filters.get("type");
+        if (null == type) {
+            List<Metric<String>> all = new ArrayList<>();
+            metricsByTags.forEach((t, metrics) -> {
+                if (t.startsWith(tags(feedId, ""))) {
+                    all.addAll(metrics);
+                }
+            });
+            return Observable.from(all);
+        }
+        return Observable.from(metricsByTags.getOrDefault(tags(feedId, type), Collections.emptyList()));
+    }
+
+    /**
+     * @param end exclusive
+     */
+    private Observable<DataPoint<String>> findStringData(MetricId<String> id, long start, long end, int limit,
+                                                         Order order) {
+        List<DataPoint<String>> result = new ArrayList<>();
+        for (DataPoint<String> dataPoint : dataPoints.getOrDefault(id.getName(), Collections.emptyList())) {
+            if (dataPoint.getTimestamp() >= start && dataPoint.getTimestamp() < end) {
+                result.add(dataPoint);
+            }
+        }
+        if (Order.ASC == order) {
+            Collections.reverse(result);
+        }
+        return Observable.from((limit > 0 && limit < result.size()) ? result.subList(0, limit) : result);
+    }
+
+    private static String tags(String feedId, String type) {
+        return "module:inventory,feed:" + feedId + ",type:" + type;
+    }
+}
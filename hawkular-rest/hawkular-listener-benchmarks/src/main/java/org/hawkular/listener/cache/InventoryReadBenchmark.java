@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.hawkular.inventory.api.model.ExtendedInventoryStructure;
+import org.hawkular.inventory.api.model.InventoryStructure;
+import org.hawkular.inventory.api.model.Metric;
+import org.hawkular.inventory.api.model.MetricDataType;
+import org.hawkular.inventory.api.model.MetricType;
+import org.hawkular.inventory.api.model.MetricUnit;
+import org.hawkular.inventory.api.model.Resource;
+import org.hawkular.inventory.json.InventoryJacksonConfig;
+import org.hawkular.metrics.core.service.MetricsService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reading the avail metrics of a feed from its inventory, as a backfill does, against an {@link InMemoryMetricsService}
+ * holding {@code resources} chunked resource inventories of {@code metricsPerResource} metrics each, over 10 metric
+ * types of which 3 are availability types.
+ * <ul>
+ * <li>{@code singleScan}: {@link InventoryHelper#listAvailabilityMetrics} with a cold inventory cache.</li>
+ * <li>{@code singleScanCached}: the same with the inventories cached, i.e. every feed backfilled after the first.</li>
+ * <li>{@code perTypeScan}: one {@link InventoryHelper#listMetricsForType} per availability type, cold cache.</li>
+ * </ul>
+ * <pre>
+ * java -jar target/benchmarks.jar InventoryReadBenchmark -prof gc
+ * </pre>
+ *
+ * @author Joel Takvorian
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx1g" })
+public class InventoryReadBenchmark {
+
+    private static final String TENANT = "tenant";
+    private static final String FEED = "feed";
+    private static final int METRIC_TYPES = 10;
+    private static final int AVAIL_METRIC_TYPES = 3;
+    private static final int CHUNK_SIZE = 16384;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper(new JsonFactory());
+
+    static {
+        InventoryJacksonConfig.configure(MAPPER);
+    }
+
+    @Param({ "10", "100" })
+    public int resources;
+
+    @Param({ "50" })
+    public int metricsPerResource;
+
+    private MetricsService metricsService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        InMemoryMetricsService inventory = InMemoryMetricsService.forTenant(TENANT);
+        for (int t = 0; t < METRIC_TYPES; ++t) {
+            MetricType.Blueprint metricType = MetricType.Blueprint
+                    .builder(t < AVAIL_METRIC_TYPES ? MetricDataType.AVAILABILITY : MetricDataType.GAUGE)
+                    .withId("metricType" + t)
+                    .withName("Metric type " + t)
+                    .withInterval(60L)
+                    .withUnit(MetricUnit.NONE)
+                    .build();
+            ExtendedInventoryStructure ext = new ExtendedInventoryStructure(
+                    InventoryStructure.Offline.of(metricType).build());
+            inventory.addInventory(FEED, "mt", "inventory.mt.metricType" + t, store(ext));
+        }
+        for (int r = 0; r < resources; ++r) {
+            inventory.addInventory(FEED, "r", "inventory.r.r" + r, store(buildResource(r)));
+        }
+        metricsService = inventory.asMetricsService();
+    }
+
+    private ExtendedInventoryStructure buildResource(int r) {
+        Resource.Blueprint resource = Resource.Blueprint.builder()
+                .withId("r" + r)
+                .withName("Resource " + r)
+                .withResourceTypePath("/rt;Resource Type")
+                .build();
+        InventoryStructure.Builder<Resource.Blueprint> builder = InventoryStructure.Offline.of(resource);
+        Map<String, Collection<String>> metricTypesIndex = new HashMap<>();
+        for (int m = 0; m < metricsPerResource; ++m) {
+            String metricType = "metricType" + (m % METRIC_TYPES);
+            String id = "r" + r + "-m" + m;
+            builder.addChild(Metric.Blueprint.builder()
+                    .withId(id)
+                    .withName("Metric " + m)
+                    .withMetricTypePath("/mt;" + metricType)
+                    .withProperty("hawkular-services.monitoring-type", (0 == m % 2) ? "remote" : "local")
+                    .build());
+            metricTypesIndex.computeIfAbsent(metricType, k -> new ArrayList<>()).add("m;" + id);
+        }
+        return new ExtendedInventoryStructure(builder.build(), new HashMap<>(), metricTypesIndex);
+    }
+
+    private static List<org.hawkular.metrics.model.DataPoint<String>> store(ExtendedInventoryStructure ext)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(MAPPER.writeValueAsBytes(ext));
+        }
+        return InventoryReassemblyBenchmark.chunk(bytes.toByteArray(), CHUNK_SIZE);
+    }
+
+    @Benchmark
+    public List<Metric.Blueprint> singleScan() {
+        InventoryHelper.invalidateInventoryCache();
+        return singleScanCached();
+    }
+
+    @Benchmark
+    public List<Metric.Blueprint> singleScanCached() {
+        return InventoryHelper.listAvailabilityMetrics(metricsService, TENANT, FEED)
+                .toList()
+                .toBlocking()
+                .single();
+    }
+
+    @Benchmark
+    public List<Metric.Blueprint> perTypeScan() {
+        InventoryHelper.invalidateInventoryCache();
+        return InventoryHelper.listMetricTypes(metricsService, TENANT, FEED)
+                .filter(mt -> MetricDataType.AVAILABILITY == mt.getMetricDataType())
+                .flatMap(mt -> InventoryHelper.listMetricsForType(metricsService, TENANT, FEED, mt))
+                .toList()
+                .toBlocking()
+                .single();
+    }
+}
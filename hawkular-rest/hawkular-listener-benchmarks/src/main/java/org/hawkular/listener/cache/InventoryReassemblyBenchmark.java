@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.hawkular.inventory.api.model.ExtendedInventoryStructure;
+import org.hawkular.inventory.api.model.InventoryStructure;
+import org.hawkular.inventory.api.model.Metric;
+import org.hawkular.inventory.api.model.Resource;
+import org.hawkular.inventory.json.InventoryJacksonConfig;
+import org.hawkular.listener.exception.InvalidInventoryChunksException;
+import org.hawkular.metrics.model.DataPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reassembly of a chunked inventory by {@link InventoryHelper#rebuildFromChunks(List)}, compared with the former
+ * implementation that decoded every chunk into a byte array, copied them all into one array, and inflated the whole
+ * JSON into a String before parsing it.
+ * <p>
+ * The inventory is a server resource with {@code metrics} metrics, about 300 bytes of JSON each: 10000 metrics
+ * make a ~3 MB JSON document. Run with the GC profiler to compare the bytes allocated per reassembly
+ * (gc.alloc.rate.norm):
+ * <pre>
+ * java -jar target/benchmarks.jar InventoryReassemblyBenchmark -prof gc
+ * </pre>
+ *
+ * @author Joel Takvorian
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx1g" })
+public class InventoryReassemblyBenchmark {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper(new JsonFactory());
+
+    static {
+        InventoryJacksonConfig.configure(MAPPER);
+    }
+
+    @Param({ "1000", "10000", "30000" })
+    public int metrics;
+
+    @Param({ "16384", "262144" })
+    public int chunkSize;
+
+    private List<DataPoint<String>> dataPoints;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        byte[] json = MAPPER.writeValueAsBytes(buildInventory(metrics));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(json);
+        }
+        dataPoints = chunk(bytes.toByteArray(), chunkSize);
+        System.out.printf("%nInventory: %d bytes of JSON, %d bytes compressed, %d chunks%n", json.length,
+                bytes.size(), dataPoints.size());
+    }
+
+    @Benchmark
+    public ExtendedInventoryStructure streaming() throws InvalidInventoryChunksException {
+        return InventoryHelper.rebuildFromChunks(dataPoints);
+    }
+
+    @Benchmark
+    public ExtendedInventoryStructure copying() throws IOException {
+        DataPoint<String> masterNode = dataPoints.get(0);
+        Base64.Decoder decoder = Base64.getDecoder();
+        int nbChunks = Integer.parseInt(masterNode.getTags().get("chunks"));
+        byte[] all = new byte[Integer.parseInt(masterNode.getTags().get("size"))];
+        int pos = 0;
+        for (int i = 0; i < nbChunks; i++) {
+            byte[] chunk = decoder.decode(dataPoints.get(i).getValue().getBytes());
+            System.arraycopy(chunk, 0, all, pos, chunk.length);
+            pos += chunk.length;
+        }
+        StringBuilder outStr = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(all)), "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            outStr.append(line);
+        }
+        return MAPPER.readValue(outStr.toString(), ExtendedInventoryStructure.class);
+    }
+
+    static ExtendedInventoryStructure buildInventory(int metrics) {
+        Random random = new Random(42L);
+        Resource.Blueprint server = Resource.Blueprint.builder()
+                .withId(UUID.randomUUID().toString() + "~Local~~")
+                .withName("WildFly Server")
+                .withResourceTypePath("/rt;WildFly Server")
+                .build();
+        InventoryStructure.Builder<Resource.Blueprint> builder = InventoryStructure.Offline.of(server);
+        Map<String, Collection<String>> metricTypesIndex = new HashMap<>();
+        for (int i = 0; i < metrics; ++i) {
+            String metricType = "metricType" + (i % 50);
+            String id = "AI~R~[" + UUID.randomUUID() + "/Local~/subsystem=datasources/data-source=ds" + i
+                    + "]~MT~" + metricType;
+            builder.addChild(Metric.Blueprint.builder()
+                    .withId(id)
+                    .withName("Metric " + i + " " + Long.toHexString(random.nextLong()))
+                    .withMetricTypePath("/mt;" + metricType)
+                    .withProperty("hawkular-services.monitoring-type", (0 == i % 2) ? "remote" : "local")
+                    .build());
+            metricTypesIndex.computeIfAbsent(metricType, k -> new ArrayList<>()).add("m;" + id);
+        }
+        return new ExtendedInventoryStructure(builder.build(), new HashMap<>(), metricTypesIndex);
+    }
+
+    /**
+     * Split as the agents do: newest (master) chunk first with the chunks and size tags, followers one ms older
+     * each.
+     */
+    static List<DataPoint<String>> chunk(byte[] compressed, int chunkSize) {
+        Base64.Encoder encoder = Base64.getEncoder();
+        int nbChunks = (compressed.length + chunkSize - 1) / chunkSize;
+        long masterTime = System.currentTimeMillis();
+        List<DataPoint<String>> result = new ArrayList<>(nbChunks);
+        for (int i = 0; i < nbChunks; ++i) {
+            String value = encoder.encodeToString(Arrays.copyOfRange(compressed, i * chunkSize,
+                    Math.min(compressed.length, (i + 1) * chunkSize)));
+            if (0 == i) {
+                Map<String, String> tags = new HashMap<>();
+                tags.put("chunks", String.valueOf(nbChunks));
+                tags.put("size", String.valueOf(compressed.length));
+                result.add(new DataPoint<>(masterTime, value, tags));
+            } else {
+                result.add(new DataPoint<>(masterTime - i, value));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+import org.hawkular.listener.cache.BackfillCacheManager.CacheValue;
+import org.infinispan.Cache;
+import org.infinispan.manager.DefaultCacheManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Feed ping ingest path of {@link BackfillCacheManager#updateFeedAvailability(String, String)}, compared with the
+ * former path which allocated a new key per ping and did a get followed by a put. Both run against a local
+ * Infinispan cache. {@code contendedMergePing} runs 8 threads pinging the same {@code hotFeeds} feeds, in lockstep.
+ * <p>
+ * {@code beanManagedPing} runs 64 threads, as many bus delivery threads, pinging all of the feeds with the bean
+ * managing its own concurrency. {@code containerManagedPing} runs them through a read write lock as the container
+ * managed singleton did, a READ lock per ping, with a WRITE locked call (e.g. a topology change or an un-annotated
+ * business method) every {@code writeEvery} pings of each thread.
+ * <p>
+ * Run with the GC profiler to get the bytes allocated per ping (gc.alloc.rate.norm):
+ * <pre>
+ * java -jar target/benchmarks.jar PingIngestBenchmark -prof gc
+ * </pre>
+ *
+ * @author Joel Takvorian
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PingIngestBenchmark {
+
+    @Param({ "1000" })
+    public int feeds;
+
+    @Param({ "8" })
+    public int hotFeeds;
+
+    @Param({ "10000" })
+    public int writeEvery;
+
+    private DefaultCacheManager cacheManager;
+    private Cache<CacheKey, CacheValue> cache;
+    private BackfillCacheManager manager;
+    private String[] tenantIds;
+    private String[] metricIds;
+
+    /**
+     * Stands for the container lock of a container managed singleton.
+     */
+    private final ReadWriteLock containerLock = new ReentrantReadWriteLock();
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+        private int calls;
+
+        int next(int bound) {
+            int result = next;
+            next = (result + 1 == bound) ? 0 : result + 1;
+            return result;
+        }
+
+        /**
+         * @return true once every period calls
+         */
+        boolean every(int period) {
+            if (++calls < period) {
+                return false;
+            }
+            calls = 0;
+            return true;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cacheManager = new DefaultCacheManager();
+        cache = cacheManager.getCache("backfill");
+        manager = new BackfillCacheManager(cacheManager, cache);
+        manager.init();
+        tenantIds = new String[feeds];
+        metricIds = new String[feeds];
+        for (int i = 0; i < feeds; ++i) {
+            tenantIds[i] = "tenant-" + (i % 10);
+            metricIds[i] = BackfillCacheManager.FEED_PREFIX + "feed-" + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.close();
+        cacheManager.stop();
+    }
+
+    @Benchmark
+    public void mergePing(Cursor cursor) {
+        int i = cursor.next(feeds);
+        manager.updateFeedAvailability(tenantIds[i], metricIds[i]);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void contendedMergePing(Cursor cursor) {
+        int i = cursor.next(hotFeeds);
+        manager.updateFeedAvailability(tenantIds[i], metricIds[i]);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void beanManagedPing(Cursor cursor) {
+        int i = cursor.next(feeds);
+        manager.updateFeedAvailability(tenantIds[i], metricIds[i]);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void containerManagedPing(Cursor cursor) {
+        int i = cursor.next(feeds);
+        if (cursor.every(writeEvery)) {
+            containerLock.writeLock().lock();
+            try {
+                manager.isStandalone();
+            } finally {
+                containerLock.writeLock().unlock();
+            }
+        }
+        containerLock.readLock().lock();
+        try {
+            manager.updateFeedAvailability(tenantIds[i], metricIds[i]);
+        } finally {
+            containerLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The former ingest path: a new key (and its feedId substring) per ping, then a non atomic get and put.
+     */
+    @Benchmark
+    public CacheValue getThenPutPing(Cursor cursor) {
+        int i = cursor.next(feeds);
+        CacheKey key = new CacheKey(tenantIds[i], metricIds[i]);
+        key.getFeedId();
+        long now = System.currentTimeMillis();
+        CacheValue value = cache.get(key);
+        value = new CacheValue(now, null == value ? 0L : value.getMaxQuietPeriodMs());
+        cache.put(key, value);
+        return value;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKeyExternalizer;
+import org.hawkular.listener.cache.BackfillCacheManager.CacheValue;
+import org.hawkular.listener.cache.BackfillCacheManager.CacheValueExternalizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Marshalling of the backfill cache entry replicated on every feed ping in HA: the compact externalizers compared
+ * with default Java serialization. The payload sizes (the bytes on the wire for one ping, before the Infinispan
+ * command envelope) are printed at setup.
+ * <p>
+ * The replication latency itself depends on the network and the JGroups stack and is not measured here, the
+ * marshalling time and payload size are the parts owned by the listener.
+ * <pre>
+ * java -jar target/benchmarks.jar PingMarshallingBenchmark -prof gc
+ * </pre>
+ *
+ * @author Joel Takvorian
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PingMarshallingBenchmark {
+
+    private final CacheKeyExternalizer keyExternalizer = new CacheKeyExternalizer();
+    private final CacheValueExternalizer valueExternalizer = new CacheValueExternalizer();
+
+    private CacheKey key;
+    private CacheValue value;
+    private ByteArrayOutputStream bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        key = new CacheKey("28026b36-8fe4-4332-84c8-524e173a68bf",
+                BackfillCacheManager.FEED_PREFIX + "7d6e4b0c-5e29-4c5a-b1f3-2d8f7f0e9a11");
+        value = new CacheValue(System.currentTimeMillis(), 150000L);
+        bytes = new ByteArrayOutputStream(512);
+
+        System.out.printf("%nBytes per ping entry: java serialization=%d, externalizers=%d%n",
+                javaSerialization().length, externalizers().length);
+    }
+
+    @Benchmark
+    public byte[] javaSerialization() throws IOException {
+        bytes.reset();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(key);
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] externalizers() throws IOException {
+        bytes.reset();
+        try (ObjectOutput out = new DataObjectOutput(bytes)) {
+            keyExternalizer.writeObject(out, key);
+            valueExternalizer.writeObject(out, value);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A raw {@link ObjectOutput}, without the stream header and block framing of {@link ObjectOutputStream}, like
+     * the Infinispan marshaller hands to the externalizers.
+     */
+    private static final class DataObjectOutput extends DataOutputStream implements ObjectOutput {
+        DataObjectOutput(ByteArrayOutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void writeObject(Object obj) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
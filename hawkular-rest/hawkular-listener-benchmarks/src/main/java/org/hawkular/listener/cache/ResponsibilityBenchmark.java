@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.manager.DefaultCacheManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The feed ownership check done by every ping, {@link BackfillCacheManager#isResponsible(String)}:
+ * <ul>
+ * <li>{@code standalone}: the check of a standalone server.</li>
+ * <li>{@code ring}: the check of an HA member, a lookup on a ring of {@code members} members.</li>
+ * </ul>
+ * <pre>
+ * java -jar target/benchmarks.jar ResponsibilityBenchmark -prof gc
+ * </pre>
+ *
+ * @author Joel Takvorian
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponsibilityBenchmark {
+
+    @Param({ "3", "10" })
+    public int members;
+
+    @Param({ "10000" })
+    public int feeds;
+
+    private DefaultCacheManager cacheManager;
+    private BackfillCacheManager manager;
+    private ConsistentHashRing ring;
+    private String memberName;
+    private String[] metricIds;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        int next(int bound) {
+            int result = next;
+            next = (result + 1 == bound) ? 0 : result + 1;
+            return result;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cacheManager = new DefaultCacheManager();
+        manager = new BackfillCacheManager(cacheManager, cacheManager.getCache("backfill"));
+        List<String> memberNames = new ArrayList<>(members);
+        for (int i = 0; i < members; ++i) {
+            memberNames.add("node-" + i);
+        }
+        ring = new ConsistentHashRing(memberNames, 128);
+        memberName = memberNames.get(0);
+        metricIds = new String[feeds];
+        for (int i = 0; i < feeds; ++i) {
+            metricIds[i] = BackfillCacheManager.FEED_PREFIX + "feed-" + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cacheManager.stop();
+    }
+
+    @Benchmark
+    public boolean standalone(Cursor cursor) {
+        return manager.isResponsible(metricIds[cursor.next(feeds)]);
+    }
+
+    @Benchmark
+    public boolean ring(Cursor cursor) {
+        return memberName.equals(ring.ownerOf(metricIds[cursor.next(feeds)]));
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 Red Hat, Inc. and/or its affiliates
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
  * and other contributors as indicated by the @author tags.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
@@ -16,6 +16,7 @@
  */
 package org.hawkular.listener.bus;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.ejb.ActivationConfigProperty;
@@ -31,6 +32,9 @@ import org.hawkular.listener.cache.BackfillCacheManager;
 import org.hawkular.metrics.component.publish.AvailDataMessage;
 import org.hawkular.metrics.component.publish.AvailDataMessage.AvailData;
 import org.hawkular.metrics.component.publish.AvailDataMessage.SingleAvail;
+import org.hawkular.metrics.model.AvailabilityType;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.MetricType;
 import org.jboss.logging.Logger;
 
 /**
@@ -65,13 +69,19 @@ public class FeedAvailabilityDataListener extends BasicMessageListener<AvailData
         }
 
         List<SingleAvail> data = availData.getData();
+        List<MetricId<AvailabilityType>> pings = new ArrayList<>();
         for (SingleAvail a : data) {
             String metricId = a.getId();
             // ignore non-ping or non-up avail
             if (metricId.startsWith(BackfillCacheManager.FEED_PREFIX) && UP.equals(a.getAvail())) {
-                backfillCacheManager.updateFeedAvailability(a.getTenantId(), metricId);
+                pings.add(new MetricId<>(a.getTenantId(), MetricType.AVAILABILITY, metricId));
             }
         }
+
+        // one container invocation and one cache batch for the whole message, applied off the delivery thread
+        if (!pings.isEmpty()) {
+            backfillCacheManager.submitFeedAvailabilities(pings);
+        }
     }
 
 }
@@ -56,7 +56,7 @@ public class HawkularTopicListener extends BasicMessageListener<BasicMessage> {
             FeedWebSocketClosedEvent fce = (FeedWebSocketClosedEvent) msg;
             log.debugf("Feed WebSocket Closed. feedId=%s reason=%s code=%s", fce.getFeedId(), fce.getReason(),
                     fce.getCode());
-            backfillCacheManager.forceBackfill(fce.getFeedId());
+            backfillCacheManager.submitForceBackfill(fce.getFeedId());
         }
     }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 Red Hat, Inc. and/or its affiliates
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
  * and other contributors as indicated by the @author tags.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
@@ -16,6 +16,14 @@
  */
 package org.hawkular.listener.cache;
 
+import java.util.Collection;
+import java.util.Map;
+
+import org.hawkular.metrics.model.AvailabilityType;
+import org.hawkular.metrics.model.MetricId;
+
+import com.google.common.cache.CacheStats;
+
 /**
  * Interface for backfill cache access and management.
  *
@@ -32,13 +40,57 @@ public interface BackfillCache extends ClusterCache {
      */
     void updateFeedAvailability(String tenantId, String feedAvailabilityMetricId);
 
+    /**
+     * Records that we have received UP availability for all of the given feed avail metrics, typically the pings
+     * of a whole AvailData message. The pings the current server is not processing are ignored, the others are
+     * applied in a single cache batch.
+     *
+     * @param feedAvailabilityMetricIds The feed avail metricIds, each with the tenant for the feed
+     */
+    void updateFeedAvailabilities(Collection<MetricId<AvailabilityType>> feedAvailabilityMetricIds);
+
+    /**
+     * Asynchronous {@link #updateFeedAvailabilities(Collection)}, the pings are applied on a submitter thread so
+     * that the caller, typically a bus listener, does not wait on the cache. The pings are recorded at the time of
+     * the call, however long they wait for a submitter thread.
+     *
+     * @param feedAvailabilityMetricIds The feed avail metricIds, each with the tenant for the feed
+     */
+    void submitFeedAvailabilities(Collection<MetricId<AvailabilityType>> feedAvailabilityMetricIds);
+
     /**
      * Request an immediate backfill for the given feed [on all of its registered tenants]. Typically
      * called when we know a feed is down and don't want to wait for the ping detection to timeout.
-     * Ignored if the current server is not processing the relevant feed.
+     * Ignored if the current server is not processing the relevant feed, if the feed backfill was already forced
+     * recently, and for the tenants on which the feed was already backfilled and did not report since.
      *
      * @param feedId The feed to force backfilling
      */
     void forceBackfill(String feedId);
 
+    /**
+     * Asynchronous {@link #forceBackfill(String)}, the backfill is requested on a submitter thread, as of the time of
+     * the call.
+     *
+     * @param feedId The feed to force backfilling
+     */
+    void submitForceBackfill(String feedId);
+
+    /**
+     * Report how the tracked feed pings are spread across the cluster members, to check that the load is balanced.
+     *
+     * @return the number of tracked feed pings owned by each cluster member, keyed by member name
+     */
+    Map<String, Integer> getOwnershipDistribution();
+
+    /**
+     * @return the hit, miss and eviction statistics of the cache of the inventories read for backfills
+     */
+    CacheStats getInventoryCacheStats();
+
+    /**
+     * @return the depth of the queue of the asynchronous submissions, their counts and how long they waited
+     */
+    BackfillSubmitter.Stats getSubmitterStats();
+
 }
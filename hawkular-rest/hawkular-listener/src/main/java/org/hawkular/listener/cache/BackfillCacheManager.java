@@ -16,37 +16,50 @@
  */
 package org.hawkular.listener.cache;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
 import javax.ejb.EJB;
 import javax.ejb.Local;
-import javax.ejb.Lock;
-import javax.ejb.LockType;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
 import javax.naming.InitialContext;
 
-import org.hawkular.inventory.api.model.MetricDataType;
 import org.hawkular.metrics.core.service.MetricsService;
 import org.hawkular.metrics.model.AvailabilityType;
 import org.hawkular.metrics.model.DataPoint;
 import org.hawkular.metrics.model.Metric;
 import org.hawkular.metrics.model.MetricId;
 import org.hawkular.metrics.model.MetricType;
+import org.hawkular.metrics.model.Tenant;
 import org.infinispan.Cache;
+import org.infinispan.commons.io.UnsignedNumeric;
+import org.infinispan.commons.marshall.Externalizer;
+import org.infinispan.commons.marshall.SerializeWith;
 import org.infinispan.manager.EmbeddedCacheManager;
 import org.infinispan.notifications.Listener;
 import org.infinispan.notifications.cachemanagerlistener.annotation.ViewChanged;
@@ -54,8 +67,10 @@ import org.infinispan.notifications.cachemanagerlistener.event.ViewChangedEvent;
 import org.infinispan.remoting.transport.Address;
 import org.jboss.logging.Logger;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.CacheStats;
+
 import rx.Observable;
-import rx.Subscriber;
 
 /**
  * <p>
@@ -69,15 +84,65 @@ import rx.Subscriber;
  * <p>
  * The following system properties can be defined to configure the backfill mechanism:
  * <pre>
+ * hawkular-services.backfill.scheduler
+ *   The engine owning the feed ping deadlines:
+ *     wheel    - a hashed timing wheel, a single ticker thread checks each feed only when its deadline comes due.
+ *     deadline - every ping pushes its feed deadline forward in a deadline ordered index, a single sweeper
+ *                thread only wakes up when the earliest deadline comes due, i.e. when a feed stops reporting.
+ *     executor - one periodic backfill checking job per feed, run every job-period-secs.
+ *     expiration - each feed has a local cache entry expiring at its deadline, the data grid expiration reaper
+ *                triggers the check of the feeds that stopped reporting.
+ *   The wheel scales best with the number of feeds, the executor is the default as in previous versions.
+ *   Default = executor
+ *
+ * hawkular-services.backfill.detection
+ *   What a ping detector tracks:
+ *     tenant - one detector per feed and tenant, each backfilling its own tenant.
+ *     feed   - one detector per feed, whatever the number of tenants it pings for, backfilling all of the tenants
+ *              of the feed. An agent reporting for N tenants has one cache entry and one detector instead of N.
+ *   Switching modes drops the ping state of the other mode, the feeds establish their ping period again.
+ *   Default = tenant
+ *
+ * hawkular-services.backfill.max-concurrency
+ *   The max number of feed backfills reading their avail metrics at once. The others are queued per tenant, the
+ *   tenants are served in turn.
+ *   Default = 4
+ *
+ * hawkular-services.backfill.batch-window-ms
+ *   The avails of the feeds backfilled within this window are written at once.
+ *   Default = 1000ms
+ *
+ * hawkular-services.backfill.batch-max-metrics
+ *   The max number of avails written at once, a batch is written before the end of its window once this large.
+ *   Default = 5000
+ *
+ * hawkular-services.backfill.force-window-ms
+ *   The forced backfills of a feed, e.g. on the closing of its websocket, are performed at most once within this
+ *   window, the others are ignored. An agent reconnecting in a loop, or all of the agents losing their websocket at
+ *   once, does not repeatedly backfill the same feeds. Set to 0 to perform every forced backfill.
+ *   Default = 10000ms
+ *
+ * hawkular-services.backfill.maintenance-period-secs
+ *   The frequency of the expiry of the backfill bookkeeping of the feeds, the forced backfill times once past the
+ *   force window, the backfill times once past the longest possible max quiet time of a feed. The backfill
+ *   statistics are logged at the same frequency, at debug level.
+ *   Default = 60s
+ *
  * hawkular-services.backfill.job-period-secs
- *   The frequency of backfill checking. A dead feed should be detected no longer than this period past its max
- *   quiet time (based on the ping-period-factor).
+ *   The frequency of backfill checking, executor scheduler only. A dead feed should be detected no longer than this
+ *   period past its max quiet time (based on the ping-period-factor). This is also the delay before retrying a
+ *   backfill that could not be performed.
  *   Default = 30s
  *
  * hawkular-services.backfill.job-threads
  *   The number of threads devoted to backfill checking jobs.  For large inventories this may need to be increased.
  *   Default = 10
  *
+ * hawkular-services.backfill.wheel-tick-ms
+ *   The duration of a timing wheel tick (wheel scheduler), or the interval of the expiration reaper (expiration
+ *   scheduler). A dead feed should be detected no longer than this period past its max quiet time.
+ *   Default = 1000ms
+ *
  * hawkular-services.backfill.ping-period-factor
  *   The multiplier applied to the ping period to determine the max quiet time before performing backfill. For
  *   example, if set to 2.5 and for a feed pinging every 60s, a backfill would be performed if no ping is received
@@ -89,6 +154,82 @@ import rx.Subscriber;
  *   establishing the ping period for a feed.  In other words, two pings must be received in less than this established
  *   min before a backfill job will be established for the feed.
  *   Default = 125s
+ *
+ * hawkular-services.backfill.ping-period-floor-ms
+ *   The pings received within this time of the previous ping of a feed are not taken as its ping period, they belong
+ *   to the same round of pings, e.g. the pings of the other tenants of a feed detector. The ping period is then
+ *   established from the first ping of the next round.
+ *   Default = 5000ms
+ *
+ * hawkular-services.backfill.ping-write-granularity-ms
+ *   Once the ping period of a feed is established, its pings are only written to the cache when the cached ping time
+ *   is older than this, the pings in between are recorded locally. In HA this is capped to half the max quiet time
+ *   of the feed, so that the next owner of a feed does not backfill it because of a ping its previous owner did not
+ *   flush before leaving. Set to 0 to write every ping.
+ *   Default = 60000ms
+ *
+ * hawkular-services.backfill.inventory-cache-bytes
+ *   The latest inventory read for each inventory metric is kept for the next backfills, until a newer inventory is
+ *   stored. Only their metrics and root are kept, this bounds an estimate of the heap they hold. Set to 0 to
+ *   disable.
+ *   Default = 64MB
+ *
+ * hawkular-services.backfill.inventory-max-concurrency
+ *   The max number of inventories fetched at once by this node, all of the backfills and registry refreshes
+ *   included, so that a mass outage does not saturate the metrics storage driver. Also bounds the inventory queries
+ *   run at once by each read.
+ *   Default = 8
+ *
+ * hawkular-services.backfill.inventory-parse-threads
+ *   The number of threads inflating and parsing the inventories read, leaving the metrics storage driver threads to
+ *   the ingestion. Set to 0 to parse on the driver threads.
+ *   Default = 2
+ *
+ * hawkular-services.backfill.inventory-max-bytes
+ *   The max compressed size of an inventory. A larger inventory is not read, its backfill fails.
+ *   Default = 32MB
+ *
+ * hawkular-services.backfill.inventory-max-inflated-bytes
+ *   The max size of the JSON of an inventory. The inflating of a larger inventory stops there, its backfill fails. A
+ *   highly compressible inventory within the max compressed size would otherwise fill the heap.
+ *   Default = 256MB
+ *
+ * hawkular-services.backfill.inventory-budget-bytes
+ *   The max compressed size of all the inventories being read at once. Reads wait for their share, bounding the heap
+ *   used when many feeds are backfilled at once.
+ *   Default = 128MB
+ *
+ * hawkular-services.backfill.registry-refresh-secs
+ *   The availability metrics of each watched feed are read from inventory ahead of its backfill, by its first ping
+ *   past a delay spread over this period once its detector is armed, and read again by its first ping past this
+ *   period, give or take a quarter, to pick up inventory changes. A backfill performed before they are known reads
+ *   them from inventory. The feeds armed at once, e.g. on startup or on a topology change, do not all read their
+ *   inventory at once. There is no inventory change
+ *   notification: each refresh of a feed/tenant costs two inventory queries and one datapoint read per inventory
+ *   metric of the feed, changed or not. A shorter period picks up the inventory changes of the running feeds sooner,
+ *   at that cost. Set to 0 to refresh them on every ping.
+ *   Default = 3600s
+ *
+ * hawkular-services.backfill.registry-refresh-max-concurrency
+ *   The max number of feed registrations read from inventory at once by this node. A stale registration is left as
+ *   is while the others are read, its next ping refreshes it. Kept below inventory-max-concurrency so that the
+ *   refreshes leave inventory fetches to the backfills.
+ *   Default = 2
+ *
+ * hawkular-services.backfill.submit-threads
+ *   The number of threads applying the pings and forced backfills received by the bus listeners, so that the message
+ *   delivery threads do not wait on the backfill cache.
+ *   Default = 2
+ *
+ * hawkular-services.backfill.submit-queue-size
+ *   The max number of bus messages waiting for a submit thread. Once reached, the messages are applied on the
+ *   delivery threads, slowing the bus consumption down.
+ *   Default = 10000
+ *
+ * hawkular-services.backfill.virtual-nodes
+ *   The number of points of each cluster member on the consistent hash ring assigning feeds to members, HA only. More
+ *   points balance the feeds better across the members, at the cost of a larger ring.
+ *   Default = 128
  * </pre></p>
  * <p>
  * It needs the following cache defined in the Wildfly configuration files.
@@ -109,8 +250,24 @@ import rx.Subscriber;
  * }
  * </pre></p>
  * <p>
- * Note that by default Singleton EJBs apply Lock(WRITE) to all business methods with a default
- * five-minute timeout.</p>
+ * A standalone server can optionally persist the backfill cache, building the feature pack with
+ * -Dhawkular.backfill.store=true adds a file-store to it:
+ * <pre>
+ * {@code
+ *          <local-cache name="backfill">
+ *              <file-store passivation="false" preload="false" purge="false"/>
+ *          </local-cache>
+ * }
+ * </pre>
+ * With it the ping state of the feeds survives a restart, and the backfill jobs are restored at startup instead of
+ * waiting for two fresh pings from every feed. The store is not preloaded, its entries are deployment classes only
+ * read once the deployment uses the cache. A persisted state that can no longer be read, e.g. after an upgrade, is
+ * dropped at startup. To clear the state by hand, stop the server and delete
+ * standalone/data/infinispan/hawkular-services.</p>
+ * <p>
+ * The bean manages its own concurrency, the container does not lock it: every business method may run at once on
+ * any number of threads, e.g. the bus delivery threads, the state is either concurrent or immutable and published
+ * through volatile fields. Only the rare topology changes are serialized.</p>
  *
  * @author Jay Shaughnessy
  * @author Lucas Ponce
@@ -118,23 +275,84 @@ import rx.Subscriber;
 @Local(BackfillCache.class)
 @Startup
 @Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
 @TransactionAttribute(value = TransactionAttributeType.NOT_SUPPORTED)
 public class BackfillCacheManager implements BackfillCache {
 
+    private static final String DEFAULT_BACKFILL_BATCH_MAX_METRICS = "5000";
+    private static final String DEFAULT_BACKFILL_BATCH_WINDOW_MS = "1000";
+    private static final String DEFAULT_BACKFILL_MAX_CONCURRENCY = "4";
+    private static final String DEFAULT_DETECTION = "tenant";
+    private static final String DEFAULT_FORCE_WINDOW_MS = "10000";
     private static final String DEFAULT_JOB_PERIOD_SECS = "15";
     private static final String DEFAULT_JOB_THREADS = "10";
+    private static final String DEFAULT_MAINTENANCE_PERIOD_SECS = "60";
     private static final String DEFAULT_PING_PERIOD_FACTOR = "2.5";
+    private static final String DEFAULT_PING_PERIOD_FLOOR_MS = "5000";
     private static final String DEFAULT_PING_PERIOD_MIN_SECS = "125";
-
+    private static final String DEFAULT_PING_WRITE_GRANULARITY_MS = "60000";
+    private static final String DEFAULT_REGISTRY_REFRESH_MAX_CONCURRENCY = "2";
+    private static final String DEFAULT_REGISTRY_REFRESH_SECS = "3600";
+    private static final String DEFAULT_SCHEDULER = "executor";
+    private static final String DEFAULT_SUBMIT_QUEUE_SIZE = "10000";
+    private static final String DEFAULT_SUBMIT_THREADS = "2";
+    private static final String DEFAULT_VIRTUAL_NODES = "128";
+    private static final String DEFAULT_WHEEL_TICK_MS = "1000";
+
+    private static final String PROP_BACKFILL_BATCH_MAX_METRICS = "hawkular-services.backfill.batch-max-metrics";
+    private static final String PROP_BACKFILL_BATCH_WINDOW_MS = "hawkular-services.backfill.batch-window-ms";
+    private static final String PROP_BACKFILL_MAX_CONCURRENCY = "hawkular-services.backfill.max-concurrency";
+    private static final String PROP_DETECTION = "hawkular-services.backfill.detection";
+    private static final String PROP_FORCE_WINDOW_MS = "hawkular-services.backfill.force-window-ms";
     private static final String PROP_JOB_PERIOD_SECS = "hawkular-services.backfill.job-period-secs";
     private static final String PROP_JOB_THREADS = "hawkular-services.backfill.job-threads";
+    private static final String PROP_MAINTENANCE_PERIOD_SECS = "hawkular-services.backfill.maintenance-period-secs";
     private static final String PROP_PING_PERIOD_FACTOR = "hawkular-services.backfill.ping-period-factor";
+    private static final String PROP_PING_PERIOD_FLOOR_MS = "hawkular-services.backfill.ping-period-floor-ms";
     private static final String PROP_PING_PERIOD_MIN_SECS = "hawkular-services.backfill.ping-period-min-secs";
-
+    private static final String PROP_PING_WRITE_GRANULARITY_MS = "hawkular-services.backfill.ping-write-granularity-ms";
+    private static final String PROP_REGISTRY_REFRESH_MAX_CONCURRENCY =
+            "hawkular-services.backfill.registry-refresh-max-concurrency";
+    private static final String PROP_REGISTRY_REFRESH_SECS = "hawkular-services.backfill.registry-refresh-secs";
+    private static final String PROP_SCHEDULER = "hawkular-services.backfill.scheduler";
+    private static final String PROP_SUBMIT_QUEUE_SIZE = "hawkular-services.backfill.submit-queue-size";
+    private static final String PROP_SUBMIT_THREADS = "hawkular-services.backfill.submit-threads";
+    private static final String PROP_VIRTUAL_NODES = "hawkular-services.backfill.virtual-nodes";
+    private static final String PROP_WHEEL_TICK_MS = "hawkular-services.backfill.wheel-tick-ms";
+
+    private static final int BACKFILL_BATCH_MAX_METRICS;
+    private static final long BACKFILL_BATCH_WINDOW_MS;
+    private static final int BACKFILL_MAX_CONCURRENCY;
+    private static final String DETECTION;
+    private static final long FORCE_WINDOW_MS;
     private static final int JOB_PERIOD_SECS;
     private static final int JOB_THREADS;
+    private static final int MAINTENANCE_PERIOD_SECS;
     private static final int PING_PERIOD_MIN_SECS;
     private static final double PING_PERIOD_FACTOR;
+    private static final long PING_PERIOD_FLOOR_MS;
+    private static final long PING_WRITE_GRANULARITY_MS;
+    private static final int REGISTRY_REFRESH_MAX_CONCURRENCY;
+    private static final int REGISTRY_REFRESH_SECS;
+    private static final String SCHEDULER;
+    private static final int SUBMIT_QUEUE_SIZE;
+    private static final int SUBMIT_THREADS;
+    private static final int VIRTUAL_NODES;
+    private static final long WHEEL_TICK_MS;
+
+    private static final String SCHEDULER_DEADLINE = "deadline";
+    private static final String SCHEDULER_EXECUTOR = "executor";
+    private static final String SCHEDULER_EXPIRATION = "expiration";
+    private static final String SCHEDULER_WHEEL = "wheel";
+    private static final int WHEEL_SIZE = 512;
+
+    private static final String DETECTION_FEED = "feed";
+    private static final String DETECTION_TENANT = "tenant";
+
+    /**
+     * The tenantId of the cache keys of the feed level detectors, see {@link CacheKey#isFeedKey()}.
+     */
+    static final String FEED_TENANT = "";
 
     public static final String FEED_PREFIX = "hawkular-feed-availability-";
 
@@ -144,10 +362,51 @@ public class BackfillCacheManager implements BackfillCache {
     private static final String METRICS_SERVICE = "java:global/Hawkular/Metrics";
 
     static {
+        int backfillBatchMaxMetrics;
+        long backfillBatchWindowMs;
+        int backfillMaxConcurrency;
+        long forceWindowMs;
         int jobPeriodSecs;
         int jobThreads;
+        int maintenancePeriodSecs;
         int pingPeriodMinSecs;
         double pingPeriodFactor;
+        long pingPeriodFloorMs;
+        long pingWriteGranularityMs;
+        int registryRefreshMaxConcurrency;
+        int registryRefreshSecs;
+        int submitQueueSize;
+        int submitThreads;
+        int virtualNodes;
+        long wheelTickMs;
+        try {
+            backfillBatchMaxMetrics = Integer
+                    .valueOf(System.getProperty(PROP_BACKFILL_BATCH_MAX_METRICS, DEFAULT_BACKFILL_BATCH_MAX_METRICS))
+                    .intValue();
+        } catch (Exception e) {
+            backfillBatchMaxMetrics = 5000;
+        }
+        try {
+            backfillBatchWindowMs = Long
+                    .valueOf(System.getProperty(PROP_BACKFILL_BATCH_WINDOW_MS, DEFAULT_BACKFILL_BATCH_WINDOW_MS))
+                    .longValue();
+        } catch (Exception e) {
+            backfillBatchWindowMs = 1000L;
+        }
+        try {
+            backfillMaxConcurrency = Integer
+                    .valueOf(System.getProperty(PROP_BACKFILL_MAX_CONCURRENCY, DEFAULT_BACKFILL_MAX_CONCURRENCY))
+                    .intValue();
+        } catch (Exception e) {
+            backfillMaxConcurrency = 4;
+        }
+        try {
+            forceWindowMs = Long
+                    .valueOf(System.getProperty(PROP_FORCE_WINDOW_MS, DEFAULT_FORCE_WINDOW_MS))
+                    .longValue();
+        } catch (Exception e) {
+            forceWindowMs = 10000L;
+        }
         try {
             jobPeriodSecs = Integer
                     .valueOf(System.getProperty(PROP_JOB_PERIOD_SECS, DEFAULT_JOB_PERIOD_SECS))
@@ -162,6 +421,13 @@ public class BackfillCacheManager implements BackfillCache {
         } catch (Exception e) {
             jobThreads = 10;
         }
+        try {
+            maintenancePeriodSecs = Integer
+                    .valueOf(System.getProperty(PROP_MAINTENANCE_PERIOD_SECS, DEFAULT_MAINTENANCE_PERIOD_SECS))
+                    .intValue();
+        } catch (Exception e) {
+            maintenancePeriodSecs = 60;
+        }
         try {
             pingPeriodFactor = Double
                     .valueOf(System.getProperty(PROP_PING_PERIOD_FACTOR, DEFAULT_PING_PERIOD_FACTOR))
@@ -169,6 +435,13 @@ public class BackfillCacheManager implements BackfillCache {
         } catch (Exception e) {
             pingPeriodFactor = 2.5;
         }
+        try {
+            pingPeriodFloorMs = Long
+                    .valueOf(System.getProperty(PROP_PING_PERIOD_FLOOR_MS, DEFAULT_PING_PERIOD_FLOOR_MS))
+                    .longValue();
+        } catch (Exception e) {
+            pingPeriodFloorMs = 5000L;
+        }
         try {
             pingPeriodMinSecs = Integer
                     .valueOf(System.getProperty(PROP_PING_PERIOD_MIN_SECS, DEFAULT_PING_PERIOD_MIN_SECS))
@@ -176,10 +449,75 @@ public class BackfillCacheManager implements BackfillCache {
         } catch (Exception e) {
             pingPeriodMinSecs = 125;
         }
+        try {
+            pingWriteGranularityMs = Long
+                    .valueOf(System.getProperty(PROP_PING_WRITE_GRANULARITY_MS, DEFAULT_PING_WRITE_GRANULARITY_MS))
+                    .longValue();
+        } catch (Exception e) {
+            pingWriteGranularityMs = 60000L;
+        }
+        try {
+            registryRefreshMaxConcurrency = Integer
+                    .valueOf(System.getProperty(PROP_REGISTRY_REFRESH_MAX_CONCURRENCY,
+                            DEFAULT_REGISTRY_REFRESH_MAX_CONCURRENCY))
+                    .intValue();
+        } catch (Exception e) {
+            registryRefreshMaxConcurrency = 2;
+        }
+        try {
+            registryRefreshSecs = Integer
+                    .valueOf(System.getProperty(PROP_REGISTRY_REFRESH_SECS, DEFAULT_REGISTRY_REFRESH_SECS))
+                    .intValue();
+        } catch (Exception e) {
+            registryRefreshSecs = 3600;
+        }
+        try {
+            submitQueueSize = Integer
+                    .valueOf(System.getProperty(PROP_SUBMIT_QUEUE_SIZE, DEFAULT_SUBMIT_QUEUE_SIZE))
+                    .intValue();
+        } catch (Exception e) {
+            submitQueueSize = 10000;
+        }
+        try {
+            submitThreads = Integer
+                    .valueOf(System.getProperty(PROP_SUBMIT_THREADS, DEFAULT_SUBMIT_THREADS))
+                    .intValue();
+        } catch (Exception e) {
+            submitThreads = 2;
+        }
+        try {
+            virtualNodes = Integer
+                    .valueOf(System.getProperty(PROP_VIRTUAL_NODES, DEFAULT_VIRTUAL_NODES))
+                    .intValue();
+        } catch (Exception e) {
+            virtualNodes = 128;
+        }
+        try {
+            wheelTickMs = Long
+                    .valueOf(System.getProperty(PROP_WHEEL_TICK_MS, DEFAULT_WHEEL_TICK_MS))
+                    .longValue();
+        } catch (Exception e) {
+            wheelTickMs = 1000L;
+        }
+        BACKFILL_BATCH_MAX_METRICS = backfillBatchMaxMetrics;
+        BACKFILL_BATCH_WINDOW_MS = backfillBatchWindowMs;
+        BACKFILL_MAX_CONCURRENCY = backfillMaxConcurrency;
+        DETECTION = System.getProperty(PROP_DETECTION, DEFAULT_DETECTION).trim().toLowerCase();
+        FORCE_WINDOW_MS = forceWindowMs;
         JOB_PERIOD_SECS = jobPeriodSecs;
         JOB_THREADS = jobThreads;
+        MAINTENANCE_PERIOD_SECS = maintenancePeriodSecs;
         PING_PERIOD_FACTOR = pingPeriodFactor;
+        PING_PERIOD_FLOOR_MS = pingPeriodFloorMs;
         PING_PERIOD_MIN_SECS = pingPeriodMinSecs;
+        PING_WRITE_GRANULARITY_MS = pingWriteGranularityMs;
+        REGISTRY_REFRESH_MAX_CONCURRENCY = registryRefreshMaxConcurrency;
+        REGISTRY_REFRESH_SECS = registryRefreshSecs;
+        SCHEDULER = System.getProperty(PROP_SCHEDULER, DEFAULT_SCHEDULER).trim().toLowerCase();
+        SUBMIT_QUEUE_SIZE = submitQueueSize;
+        SUBMIT_THREADS = submitThreads;
+        VIRTUAL_NODES = virtualNodes;
+        WHEEL_TICK_MS = wheelTickMs;
     }
 
     private final Logger log = Logger.getLogger(BackfillCacheManager.class);
@@ -187,24 +525,98 @@ public class BackfillCacheManager implements BackfillCache {
     /**
      * Indicate whether we are standalone or distributed.
      */
-    private boolean standalone = true;
+    private volatile boolean standalone = true;
+
+    /**
+     * Assigns the feeds to the cluster members, null when standalone. Replaced on every topology change.
+     */
+    private volatile ConsistentHashRing ring;
+
+    /**
+     * The name of this member on the ring.
+     */
+    private volatile String memberName;
+
+    /**
+     * Owns the ping deadlines of the feeds this member is responsible for.
+     */
+    private BackfillScheduler scheduler;
+
+    /**
+     * Performs the backfills, batching their writes.
+     */
+    private BackfillExecutor backfillExecutor;
+
+    /**
+     * Applies the work of the bus listeners off their delivery threads.
+     */
+    private BackfillSubmitter submitter;
+
+    /**
+     * Expires the backfill bookkeeping of the feeds, see {@link #expireBackfillTimes(long)}, logs the backfill
+     * statistics and processes the topology changes.
+     */
+    private ScheduledExecutorService maintenance;
+
+    /**
+     * The submissions overflowed as of the latest maintenance, maintenance thread only.
+     */
+    private long submitOverflowed;
+
+    /**
+     * Whether the feeds are tracked once per feed rather than per feed and tenant.
+     */
+    private volatile boolean feedDetection;
+
+    /**
+     * The detection mode, see {@link #feedDetection}.
+     */
+    private String detection = DETECTION;
+
+    /**
+     * Whether the cache supports invocation batching (the HA configuration), see
+     * {@link #updateFeedAvailabilities(Collection)}.
+     */
+    private volatile boolean batching;
+
+    /**
+     * Interned cache keys, tenantId -> feedAvailabilityMetricId -> key. A key is released once its feed is no longer
+     * tracked by this member, backfilled or handed over, see {@link #releaseKey(CacheKey)}.
+     */
+    private final Map<String, Map<String, CacheKey>> keys = new ConcurrentHashMap<>();
+
+    /**
+     * The tenants each feed pinged for, feedId -> tenantIds, maintained as the keys are interned and released. Resolves
+     * the tenants of a feed to backfill, see {@link #forceBackfill(String)}.
+     */
+    private final Map<String, Set<String>> feedTenants = new ConcurrentHashMap<>();
 
     /**
-     * Number of cache members
+     * The latest ping time of the owned feeds whose pings were not written to the cache, see
+     * {@link #coalescePing(CacheKey, long)}. Only meaningful when later than the cached ping time.
      */
-    private int numMembers = 1;
+    private final Map<CacheKey, AtomicLong> localPings = new ConcurrentHashMap<>();
 
     /**
-     * Each member assigned a unique number from 0..numMembers-1.
+     * The time of the latest backfill of the owned feeds, so that a feed is backfilled once per outage, see
+     * {@link #claimBackfill(CacheKey, CacheValue, long)}. Expired by the maintenance task.
      */
-    private int memberNumber = 0;
+    private final Map<CacheKey, AtomicLong> backfillTimes = new ConcurrentHashMap<>();
 
-    private ScheduledExecutorService executorService;
+    /**
+     * The time of the latest forced backfill of each feed, feedId -> time, see {@link #forceBackfill(String)}. Expired
+     * by the maintenance task.
+     */
+    private final Map<String, AtomicLong> forcedBackfills = new ConcurrentHashMap<>();
 
-    private Map<CacheKey, ScheduledFuture<?>> jobMap = new ConcurrentHashMap<>();
+    /**
+     * The availability metrics of the owned feeds, so that a backfill does not have to read them from inventory.
+     */
+    private final FeedAvailabilityRegistry registry = new FeedAvailabilityRegistry(REGISTRY_REFRESH_SECS * 1000L,
+            REGISTRY_REFRESH_MAX_CONCURRENCY);
 
     // Lazy init these when we actually need to do a backfill
-    private MetricsService metricsService;
+    private volatile MetricsService metricsService;
 
     /**
      * Access to the manager of the caches used for tracking avail.
@@ -221,25 +633,107 @@ public class BackfillCacheManager implements BackfillCache {
     @EJB
     BackfillCache self;
 
+    private TopologyChangeListener topologyChangeListener;
+
+    public BackfillCacheManager() {
+    }
+
+    /**
+     * For use outside of the container, e.g. benchmarks. {@link #init()} must still be called.
+     */
+    @VisibleForTesting
+    BackfillCacheManager(EmbeddedCacheManager cacheManager, Cache<CacheKey, CacheValue> backfillCache) {
+        this.cacheManager = cacheManager;
+        this.backfillCache = backfillCache;
+        this.self = this;
+    }
+
+    /**
+     * For tests, with the given metrics service and detection mode. {@link #init()} must still be called.
+     */
+    @VisibleForTesting
+    BackfillCacheManager(EmbeddedCacheManager cacheManager, Cache<CacheKey, CacheValue> backfillCache,
+            MetricsService metricsService, String detection) {
+        this(cacheManager, backfillCache);
+        this.metricsService = metricsService;
+        this.detection = detection;
+    }
+
     @PostConstruct
     public void init() {
+        batching = backfillCache.getCacheConfiguration().invocationBatching().enabled();
+        feedDetection = DETECTION_FEED.equals(detection);
+        if (feedDetection) {
+            log.info("Feed pings tracked once per feed, backfilling all of its tenants");
+        } else if (!DETECTION_TENANT.equals(detection)) {
+            log.warnf("Unknown backfill detection [%s], using [%s]", detection, DEFAULT_DETECTION);
+        }
+
+        scheduler = createScheduler();
+        backfillExecutor = new BackfillExecutor(BACKFILL_MAX_CONCURRENCY, BACKFILL_BATCH_WINDOW_MS,
+                BACKFILL_BATCH_MAX_METRICS, () -> metricsService, this::unclaimBackfill);
+        submitter = new BackfillSubmitter(SUBMIT_THREADS, SUBMIT_QUEUE_SIZE);
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hawkular-backfill-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        long maintenancePeriodSecs = Math.max(1, MAINTENANCE_PERIOD_SECS);
+        maintenance.scheduleWithFixedDelay(this::maintain, maintenancePeriodSecs, maintenancePeriodSecs,
+                TimeUnit.SECONDS);
+
         // Cache manager has an active transport (i.e. jgroups) when is configured on distributed mode
         standalone = (null == cacheManager.getTransport());
         if (standalone) {
             log.info("Initializing Standalone Availability Cache");
+            restoreJobs();
         } else {
             log.info("Initializing Distributed Availability Cache");
             processTopologyChange();
+            topologyChangeListener = new TopologyChangeListener();
+            cacheManager.addListener(topologyChangeListener);
         }
+    }
 
-        // This is basically a fixed size pool, the size may need to be increased if there are a lot of
-        // active feeds.
-        executorService = Executors.newScheduledThreadPool(JOB_THREADS);
+    private BackfillScheduler createScheduler() {
+        switch (SCHEDULER) {
+            case SCHEDULER_DEADLINE:
+                log.infof("Backfill checking driven by feed deadlines");
+                return new DeadlineBackfillScheduler(JOB_THREADS, this::checkFeed);
+            case SCHEDULER_EXECUTOR:
+                log.infof("Backfill checking with one job per feed every %d s", JOB_PERIOD_SECS);
+                return new ExecutorBackfillScheduler(JOB_THREADS, JOB_PERIOD_SECS * 1000L, this::checkFeed);
+            case SCHEDULER_EXPIRATION:
+                log.infof("Backfill checking driven by cache expiration, reaped every %d ms", WHEEL_TICK_MS);
+                return new ExpirationBackfillScheduler(cacheManager, JOB_THREADS, WHEEL_TICK_MS, this::checkFeed);
+            case SCHEDULER_WHEEL:
+                log.infof("Backfill checking with a timing wheel ticking every %d ms", WHEEL_TICK_MS);
+                return new HashedWheelBackfillScheduler(JOB_THREADS, WHEEL_TICK_MS, WHEEL_SIZE, this::checkFeed);
+            default:
+                log.warnf("Unknown backfill scheduler [%s], using [%s]", SCHEDULER, DEFAULT_SCHEDULER);
+                return new ExecutorBackfillScheduler(JOB_THREADS, JOB_PERIOD_SECS * 1000L, this::checkFeed);
+        }
     }
 
     @PreDestroy
     public void close() {
-        executorService.shutdownNow();
+        if (null != topologyChangeListener) {
+            cacheManager.removeListener(topologyChangeListener);
+        }
+        maintenance.shutdownNow();
+        // apply the pings already received before handing them over
+        submitter.shutdown();
+        // hand the latest pings over to the next owners, or to the store for the next start
+        for (CacheKey key : localPings.keySet()) {
+            try {
+                flushPing(key);
+            } catch (Exception e) {
+                log.warnf("Unable to flush feed availability for %s", key);
+            }
+        }
+        scheduler.shutdown();
+        backfillExecutor.shutdown();
+        InventoryHelper.shutdown();
     }
 
     @Override
@@ -248,23 +742,37 @@ public class BackfillCacheManager implements BackfillCache {
     }
 
     /**
-     * Auxiliary interface to add Infinispan listener to the caches
+     * Auxiliary interface to add Infinispan listener to the caches. The rebalance walks the whole cache and writes
+     * to it, so it is handed off to the maintenance thread instead of holding up the installation of the view.
+     * Each rebalance reads the current members, a late one is never stale.
      */
     @Listener
     public class TopologyChangeListener {
         @ViewChanged
         public void onTopologyChange(ViewChangedEvent cacheEvent) {
             // When a node is joining/leaving the cluster partition needs to be re-calculated and updated
-            self.processTopologyChange();
+            try {
+                maintenance.execute(() -> {
+                    try {
+                        self.processTopologyChange();
+                    } catch (Exception e) {
+                        log.errorf(e, "Failed to process the topology change to %s", cacheEvent.getNewMembers());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.debugf("Ignoring the topology change to %s, shutting down", cacheEvent.getNewMembers());
+            }
         }
     }
 
     /**
-     * Reset the memberNumber for this cache member given the new cluster topology. Each member should execute
-     * this on a topology change.  This method and {@link BackfillCacheManager#isResponsible(String)} work together.
+     * Rebuild the hash ring for the new cluster topology and hand off the backfill detectors of the feeds that
+     * changed owner. Each member should execute this on a topology change. This method and
+     * {@link BackfillCacheManager#isResponsible(String)} work together. Topology changes are serialized, the pings
+     * are not held up meanwhile: they see the new ring as soon as it is published.
      */
     @Override
-    public void processTopologyChange() {
+    public synchronized void processTopologyChange() {
         List<Address> members = cacheManager.getMembers();
         Address member = cacheManager.getAddress();
 
@@ -273,70 +781,444 @@ public class BackfillCacheManager implements BackfillCache {
             return;
         }
 
-        Collections.sort(members);
-        numMembers = members.size();
-        memberNumber = members.indexOf(member);
+        List<String> memberNames = new ArrayList<>(members.size());
+        for (Address m : members) {
+            memberNames.add(m.toString());
+        }
+        memberName = member.toString();
+        ring = new ConsistentHashRing(memberNames, VIRTUAL_NODES);
+
+        log.info("Topology Update. Member " + member + " is one of " + members.size() + " members of " + ring);
+        log.debugf("Hash space shares: %s", ring.getHashSpaceShares());
+        log.infof("Feed ownership distribution: %s", getOwnershipDistribution());
+
+        rebalance();
+    }
+
+    /**
+     * With a persistent backfill cache the ping state survives a restart. Restore the backfill job of every feed
+     * with an established ping period, as if the feed had pinged at startup: its pings were lost while the server
+     * was down, so it gets a full max quiet period to report again before being backfilled. A no-op for a cache
+     * without store, which always starts empty. A persisted state that cannot be read, e.g. written by an older
+     * version, is dropped: the feeds then start over, as without store.
+     */
+    private void restoreJobs() {
+        try {
+            doRestoreJobs();
+        } catch (Exception e) {
+            log.warnf(e, "Failed to read the persisted ping state, clearing it");
+            backfillCache.clear();
+        }
+    }
+
+    private void doRestoreJobs() {
+        long now = System.currentTimeMillis();
+        int restored = 0;
+        for (Map.Entry<CacheKey, CacheValue> entry : backfillCache.entrySet()) {
+            CacheValue value = entry.getValue();
+            if (!value.hasBackfillJob()) {
+                continue;
+            }
+            CacheKey key = internKey(entry.getKey().getTenantId(), entry.getKey().getMetricId());
+            try {
+                CacheValue restartPing = new CacheValue(Math.max(now, value.getLastUpdateTime()),
+                        value.getMaxQuietPeriodMs());
+                // a feed may already have pinged since startup, its ping wins
+                backfillCache.replace(key, value, restartPing);
+                if (scheduler.schedule(key, restartPing.getLastUpdateTime() + restartPing.getMaxQuietPeriodMs())) {
+                    ++restored;
+                }
+            } catch (Exception e) {
+                log.errorf(e, "Failed to restore BackfillCheck job for %s", key);
+            }
+        }
+        if (restored > 0) {
+            log.infof("Restored %d backfill jobs from the persisted ping state", restored);
+        }
+    }
 
-        log.info("Topology Update. Member " + member + " assigned number " + memberNumber + " of " + numMembers);
+    /**
+     * Cancel the detectors of the feeds this member no longer owns, and arm the detectors of the feeds it now owns
+     * from their replicated ping state, instead of waiting for their next ping. A gained feed whose deadline has
+     * already passed is checked right away.
+     */
+    private void rebalance() {
+        int released = 0;
+        int acquired = 0;
+        for (Map.Entry<CacheKey, CacheValue> entry : backfillCache.entrySet()) {
+            CacheKey key = entry.getKey();
+            CacheValue value = entry.getValue();
+            try {
+                if (!isResponsible(key.getMetricId())) {
+                    flushPing(key);
+                    for (CacheKey tenantKey : tenantKeysOf(key)) {
+                        registry.remove(tenantKey);
+                        releaseKey(tenantKey);
+                    }
+                    backfillTimes.remove(key);
+                    if (scheduler.cancel(key)) {
+                        ++released;
+                    }
+                    releaseKey(key);
+                } else if (value.hasBackfillJob() && !scheduler.isScheduled(key)) {
+                    key = internKey(key.getTenantId(), key.getMetricId());
+                    if (scheduler.schedule(key, value.getLastUpdateTime() + value.getMaxQuietPeriodMs())) {
+                        ++acquired;
+                    }
+                }
+            } catch (Exception e) {
+                log.errorf(e, "Failed to rebalance BackfillCheck job for %s", key);
+            }
+        }
+        log.infof("Backfill jobs rebalanced: %d released, %d acquired, %d owned", released, acquired,
+                scheduler.size());
     }
 
     @Override
-    @Lock(LockType.READ)
     public boolean isResponsible(String metricId) {
-        int hash = metricId.hashCode();
-        int mod = hash % numMembers;
-        boolean result = mod == memberNumber;
-        log.trace("Member " + memberNumber + (result ? " is " : " is not ") + " responsible for " + metricId);
+        ConsistentHashRing ring = this.ring;
+        if (null == ring) {
+            return true;
+        }
+        boolean result = memberName.equals(ring.ownerOf(metricId));
+        if (log.isTraceEnabled()) {
+            log.trace("Member " + memberName + (result ? " is " : " is not ") + " responsible for " + metricId);
+        }
         return result;
     }
 
     @Override
-    @Lock(LockType.READ)
+    public Map<String, Integer> getOwnershipDistribution() {
+        ConsistentHashRing ring = this.ring;
+        if (null == ring) {
+            return Collections.singletonMap(String.valueOf(cacheManager.getAddress()), backfillCache.size());
+        }
+        List<String> metricIds = new ArrayList<>();
+        for (CacheKey key : backfillCache.keySet()) {
+            metricIds.add(key.getMetricId());
+        }
+        return ring.getDistribution(metricIds);
+    }
+
+    @Override
+    public CacheStats getInventoryCacheStats() {
+        return InventoryHelper.getInventoryCacheStats();
+    }
+
+    @Override
+    public BackfillSubmitter.Stats getSubmitterStats() {
+        return submitter.getStats();
+    }
+
+    @Override
+    public void submitFeedAvailabilities(Collection<MetricId<AvailabilityType>> feedAvailabilityMetricIds) {
+        // the pings are timed on receipt, not when applied, the queueing time must not skew the ping period
+        long now = System.currentTimeMillis();
+        submitter.submit(() -> updateFeedAvailabilities(feedAvailabilityMetricIds, now));
+    }
+
+    @Override
+    public void submitForceBackfill(String feedId) {
+        long now = System.currentTimeMillis();
+        submitter.submit(() -> forceBackfill(feedId, now));
+    }
+
+    @Override
     public void updateFeedAvailability(String tenantId, String feedAvailabilityMetricId) {
+        updateFeedAvailability(tenantId, feedAvailabilityMetricId, System.currentTimeMillis());
+    }
+
+    /**
+     * @param now The time the ping was received
+     */
+    @VisibleForTesting
+    void updateFeedAvailability(String tenantId, String feedAvailabilityMetricId, long now) {
         if (!isResponsible(feedAvailabilityMetricId)) {
             return;
         }
 
-        CacheKey key = new CacheKey(tenantId, feedAvailabilityMetricId);
+        CacheKey key = detectionKey(tenantId, feedAvailabilityMetricId);
+
+        try {
+            if (coalescePing(key, now)) {
+                return;
+            }
+
+            // Atomically record the ping, the merge function never touches the scheduler as it may be retried
+            CacheValue value = backfillCache.merge(key, new CacheValue(now, 0L), BackfillCacheManager::mergePing);
+
+            armDetector(key, value, now);
+        } catch (Exception e) {
+            log.warn("Unable to update feed availability for " + key + ". Will try again on next update");
+        }
+    }
+
+    /**
+     * Every member receives every AvailData message, so grouping the pings by owner amounts to keeping the ones
+     * this member is responsible for. The messages are applied by several submitter threads and those of the
+     * tenants of a feed, or of a feed's rounds, may compete for the same entry: each ping is merged atomically as on
+     * the single ping path, in one batch.
+     */
+    @Override
+    public void updateFeedAvailabilities(Collection<MetricId<AvailabilityType>> feedAvailabilityMetricIds) {
+        updateFeedAvailabilities(feedAvailabilityMetricIds, System.currentTimeMillis());
+    }
+
+    /**
+     * @param now The time the pings were received
+     */
+    @VisibleForTesting
+    void updateFeedAvailabilities(Collection<MetricId<AvailabilityType>> feedAvailabilityMetricIds, long now) {
+        // one ping per detector is enough
+        Set<CacheKey> keys = new HashSet<>();
+        for (MetricId<AvailabilityType> metricId : feedAvailabilityMetricIds) {
+            if (isResponsible(metricId.getName())) {
+                keys.add(detectionKey(metricId.getTenantId(), metricId.getName()));
+            }
+        }
+        keys.removeIf(key -> coalescePing(key, now));
+        if (keys.isEmpty()) {
+            return;
+        }
+        if (1 == keys.size()) {
+            CacheKey key = keys.iterator().next();
+            updateFeedAvailability(key.getTenantId(), key.getMetricId(), now);
+            return;
+        }
 
+        Map<CacheKey, CacheValue> updates = new HashMap<>(keys.size() * 2);
+        boolean batch = batching && backfillCache.startBatch();
+        boolean success = false;
         try {
-            CacheValue value = backfillCache.get(key);
-            if (null == value) {
-                backfillCache.put(key, new CacheValue());
+            for (CacheKey key : keys) {
+                updates.put(key, backfillCache.merge(key, new CacheValue(now, 0L), BackfillCacheManager::mergePing));
+            }
+            success = true;
+        } catch (Exception e) {
+            log.warn("Unable to update feed availability for " + keys.size()
+                    + " feeds. Will try again on next update");
+        } finally {
+            if (batch) {
+                backfillCache.endBatch(success);
+            }
+        }
+
+        if (success) {
+            updates.forEach((key, value) -> armDetector(key, value, now));
+        }
+    }
 
+    /**
+     * Coalesce the pings of a feed with an established ping period: while the cached ping time is within the write
+     * granularity, the ping is only recorded locally and pushes the detector forward, saving a (clustered) cache
+     * write. The detector sees the local pings through {@link #lastPingTime(CacheKey, CacheValue)}.
+     *
+     * @return true if the ping was coalesced, false if it must be written to the cache
+     */
+    private boolean coalescePing(CacheKey key, long now) {
+        CacheValue cached = backfillCache.get(key);
+        if (null == cached || !cached.hasBackfillJob()
+                || (now - cached.getLastUpdateTime()) >= writeGranularityMs(cached)) {
+            return false;
+        }
+        AtomicLong lastPing = localPings.get(key);
+        if (null == lastPing) {
+            lastPing = localPings.computeIfAbsent(key, k -> new AtomicLong());
+        }
+        lastPing.accumulateAndGet(now, Math::max);
+        armDetector(key, cached, now);
+        return true;
+    }
+
+    private long writeGranularityMs(CacheValue value) {
+        // in HA a member may leave without flushing, the staleness of the cached ping must stay well under the max
+        // quiet time for the next owner not to backfill a live feed
+        return standalone ? PING_WRITE_GRANULARITY_MS
+                : Math.min(PING_WRITE_GRANULARITY_MS, value.getMaxQuietPeriodMs() / 2);
+    }
+
+    /**
+     * @return the latest ping time of the feed, cached or coalesced
+     */
+    private long lastPingTime(CacheKey key, CacheValue value) {
+        AtomicLong lastPing = localPings.get(key);
+        return (null == lastPing) ? value.getLastUpdateTime() : Math.max(lastPing.get(), value.getLastUpdateTime());
+    }
+
+    /**
+     * Write the coalesced ping of a feed, if any, to the cache so that its next owner sees it.
+     */
+    private void flushPing(CacheKey key) {
+        AtomicLong lastPing = localPings.remove(key);
+        if (null != lastPing) {
+            backfillCache.merge(key, new CacheValue(lastPing.get(), 0L), BackfillCacheManager::mergeFlush);
+        }
+    }
+
+    static CacheValue mergeFlush(CacheValue previous, CacheValue flush) {
+        if (previous.getLastUpdateTime() >= flush.getLastUpdateTime()) {
+            return previous;
+        }
+        return new CacheValue(flush.getLastUpdateTime(), previous.getMaxQuietPeriodMs());
+    }
+
+    /**
+     * Arm or push forward the backfill detector of a feed that just pinged, if its ping period is established.
+     */
+    private void armDetector(CacheKey key, CacheValue value, long now) {
+        if (value.hasBackfillJob()) {
+            long deadline = now + value.getMaxQuietPeriodMs();
+            if (!scheduler.isScheduled(key) && scheduler.schedule(key, deadline)) {
+                log.debugf("Starting Backfill Job for %s", key);
             } else {
-                long now = System.currentTimeMillis();
-
-                // On the second ping, if valid, start the backfill check job
-                if (!value.hasBackfillJob()) {
-                    long pingPeriodMs = now - value.getLastUpdateTime();
-
-                    if (pingPeriodMs <= (PING_PERIOD_MIN_SECS * 1000)) {
-                        log.debugf("Starting Backfill Job for %s", key);
-                        long maxQuietPeriodMs = (long) (pingPeriodMs * PING_PERIOD_FACTOR);
-                        value.setMaxQuietPeriodMs(maxQuietPeriodMs);
-                        ScheduledFuture<?> sf = executorService.scheduleWithFixedDelay(
-                                new BackfillCheckJob(key, maxQuietPeriodMs),
-                                JOB_PERIOD_SECS, JOB_PERIOD_SECS, TimeUnit.SECONDS);
-                        jobMap.put(key, sf);
-                    } else {
-                        log.debugf("Ignoring Backfill Job for %s, ping period %d > %d (the minimum)",
-                                key, pingPeriodMs, PING_PERIOD_MIN_SECS);
-                    }
+                scheduler.ping(key, deadline);
+            }
+            Supplier<MetricsService> services = () -> initServices() ? metricsService : null;
+            if (key.isFeedKey()) {
+                for (CacheKey tenantKey : tenantKeysOf(key)) {
+                    registry.refreshIfStale(tenantKey, now, services);
                 }
+            } else {
+                registry.refreshIfStale(key, now, services);
+            }
+        } else {
+            log.tracef("No Backfill Job for %s until two pings are received within %d s", key,
+                    PING_PERIOD_MIN_SECS);
+        }
+    }
+
+    /**
+     * Merge a new ping into the cached value of a feed. On the second ping, if received within the min ping period,
+     * the ping period is established and the entry is flagged as needing a backfill job. The pings are applied by
+     * several submitter threads, a ping received before the cached one is ignored. Until the ping period is
+     * established, a ping of the same round as the cached one is ignored: a feed detector receives the pings of all
+     * of the tenants of the feed, a few ms apart, and the period is the time between two rounds.
+     *
+     * @param previous the cached value
+     * @param ping the value for the new ping, no backfill job
+     * @return the new cached value
+     */
+    static CacheValue mergePing(CacheValue previous, CacheValue ping) {
+        if (ping.getLastUpdateTime() <= previous.getLastUpdateTime()) {
+            return previous;
+        }
+        if (previous.hasBackfillJob()) {
+            return new CacheValue(ping.getLastUpdateTime(), previous.getMaxQuietPeriodMs());
+        }
+        long pingPeriodMs = ping.getLastUpdateTime() - previous.getLastUpdateTime();
+        if (pingPeriodMs < PING_PERIOD_FLOOR_MS) {
+            // keep the first ping of the round
+            return previous;
+        }
+        if (pingPeriodMs > (PING_PERIOD_MIN_SECS * 1000L)) {
+            // Ignoring Backfill Job, ping period > the minimum
+            return ping;
+        }
+        return new CacheValue(ping.getLastUpdateTime(), (long) (pingPeriodMs * PING_PERIOD_FACTOR));
+    }
+
+    /**
+     * @return the key of the detector tracking the pings of the feed on the tenant, the interned feed/tenant key or,
+     * with feed detection, the interned feed key. The feed/tenant key is interned either way, indexing the tenant
+     * under its feed.
+     */
+    private CacheKey detectionKey(String tenantId, String feedAvailabilityMetricId) {
+        CacheKey key = internKey(tenantId, feedAvailabilityMetricId);
+        return feedDetection ? internKey(FEED_TENANT, feedAvailabilityMetricId) : key;
+    }
+
+    /**
+     * @return the feed/tenant keys of a feed key, for the tenants the feed pinged for, or the feed/tenant key itself
+     */
+    private List<CacheKey> tenantKeysOf(CacheKey key) {
+        if (!key.isFeedKey()) {
+            return Collections.singletonList(key);
+        }
+        Set<String> tenantIds = feedTenants.get(key.getFeedId());
+        if (null == tenantIds) {
+            return Collections.emptyList();
+        }
+        List<CacheKey> result = new ArrayList<>(tenantIds.size());
+        for (String tenantId : tenantIds) {
+            result.add(internKey(tenantId, key.getMetricId()));
+        }
+        return result;
+    }
 
-                // Update the cache with the latest ping
-                value.setLastUpdateTime(now);
-                backfillCache.put(key, value);
+    /**
+     * @return the tenants the feed pinged for or, when it did not ping since startup, all of the tenants of the feed
+     */
+    private Observable<String> tenantsOf(String feedId) {
+        Set<String> tenantIds = feedTenants.get(feedId);
+        return (null != tenantIds && !tenantIds.isEmpty())
+                ? Observable.from(new ArrayList<>(tenantIds))
+                : InventoryHelper.listTenantsForFeed(metricsService, feedId).map(Tenant::getId);
+    }
+
+    /**
+     * Pings are the hot path, reuse the keys instead of allocating one for every ping. Lookups do not allocate. A
+     * new key also indexes its tenant under its feed, see {@link #feedTenants}.
+     */
+    CacheKey internKey(String tenantId, String feedAvailabilityMetricId) {
+        Map<String, CacheKey> tenantKeys = keys.get(tenantId);
+        if (null == tenantKeys) {
+            tenantKeys = keys.computeIfAbsent(tenantId, t -> new ConcurrentHashMap<>());
+        }
+        CacheKey key = tenantKeys.get(feedAvailabilityMetricId);
+        if (null == key) {
+            CacheKey newKey = new CacheKey(tenantId, feedAvailabilityMetricId);
+            key = tenantKeys.putIfAbsent(feedAvailabilityMetricId, newKey);
+            if (null == key) {
+                key = newKey;
+                if (isFeedTenantKey(key)) {
+                    // serialized with the pruning of the tenants of the feed, see releaseKey
+                    feedTenants.compute(key.getFeedId(), (f, tenantIds) -> {
+                        Set<String> result = (null == tenantIds) ? ConcurrentHashMap.newKeySet() : tenantIds;
+                        result.add(tenantId);
+                        return result;
+                    });
+                }
             }
-        } catch (Exception e) {
-            log.warn("Unable to update feed availability for " + key + ". Will try again on next update");
         }
+        return key;
+    }
+
+    /**
+     * Drop the interned key of a feed no longer tracked, and its tenant from the tenants of the feed, a later ping
+     * interns it again. The keys are compared by value everywhere, a released key still in use is harmless.
+     */
+    private void releaseKey(CacheKey key) {
+        Map<String, CacheKey> tenantKeys = keys.get(key.getTenantId());
+        if (null == tenantKeys) {
+            return;
+        }
+        if (!isFeedTenantKey(key)) {
+            tenantKeys.remove(key.getMetricId());
+            return;
+        }
+        feedTenants.compute(key.getFeedId(), (f, tenantIds) -> {
+            tenantKeys.remove(key.getMetricId());
+            if (null != tenantIds) {
+                tenantIds.remove(key.getTenantId());
+            }
+            return (null == tenantIds || tenantIds.isEmpty()) ? null : tenantIds;
+        });
+    }
+
+    private static boolean isFeedTenantKey(CacheKey key) {
+        return key.getMetricId().startsWith(FEED_PREFIX) && !key.isFeedKey();
     }
 
     @Override
-    @Lock(LockType.READ)
     public void forceBackfill(String feedId) {
+        forceBackfill(feedId, System.currentTimeMillis());
+    }
+
+    /**
+     * @param now The time the backfill was requested
+     */
+    @VisibleForTesting
+    void forceBackfill(String feedId, long now) {
         if (!initServices()) {
             log.warnf("Could not perform backfill, not all services are available. Metrics=%s", metricsService);
             return;
@@ -348,20 +1230,48 @@ public class BackfillCacheManager implements BackfillCache {
             return;
         }
 
-        // Fetch all tenants for the feed
-        InventoryHelper.listTenantsForFeed(metricsService, feedId)
-                .doOnNext(tenant -> forceBackfill(tenant.getId(), feedAvailabilityMetricId))
-                .isEmpty()
-                .subscribe(wasEmpty -> {
-                    if (wasEmpty) {
+        if (isForceCoalesced(feedId, now)) {
+            log.debugf("Feed %s backfill already forced within the last %d ms, ignoring", feedId, FORCE_WINDOW_MS);
+            return;
+        }
+
+        if (feedDetection) {
+            // the single detector of the feed, its backfill fans out to the tenants
+            forceBackfill(FEED_TENANT, feedAvailabilityMetricId);
+            return;
+        }
+
+        // counted rather than isEmpty(), which stops at the first tenant
+        tenantsOf(feedId).doOnNext(tenantId -> forceBackfill(tenantId, feedAvailabilityMetricId))
+                .count()
+                .subscribe(tenants -> {
+                    if (0 == tenants) {
                         log.errorf("Expected at least one tenant for feedId [%s]", feedId);
                     }
                 }, err -> log.error("Could not perform backfill", err));
     }
 
+    /**
+     * @return true if the feed had a forced backfill within the window, this one is then ignored
+     */
+    private boolean isForceCoalesced(String feedId, long now) {
+        AtomicLong forcedTime = forcedBackfills.get(feedId);
+        if (null == forcedTime) {
+            forcedTime = forcedBackfills.computeIfAbsent(feedId, f -> new AtomicLong());
+        }
+        long previous;
+        do {
+            previous = forcedTime.get();
+            if ((now - previous) < FORCE_WINDOW_MS) {
+                return true;
+            }
+        } while (!forcedTime.compareAndSet(previous, now));
+        return false;
+    }
+
     private void forceBackfill(String tenantId, String feedAvailabilityMetricId) {
-        CacheKey key = new CacheKey(tenantId, feedAvailabilityMetricId);
-        CacheValue value = backfillCache.getOrDefault(key, new CacheValue());
+        CacheKey key = internKey(tenantId, feedAvailabilityMetricId);
+        CacheValue value = backfillCache.get(key);
 
         // backfill situation
         log.infof("Feed %s has been reported down and will be backfilled.", key);
@@ -369,40 +1279,105 @@ public class BackfillCacheManager implements BackfillCache {
 
     }
 
-    private void doBackfill(CacheKey key, CacheValue value) {
-        // only backfill once, so stop the backfill job
-        cancelJob(key);
-
-        // mark the cache entry as no longer having a backfill job running
-        value.setMaxQuietPeriodMs(0L);
-        backfillCache.put(key, value);
+    /**
+     * A feed is backfilled once per outage, whether forced or on its ping timeout: a feed backfilled after its last
+     * ping is not backfilled again. Without cached ping the feed is backfilled only if it never was.
+     *
+     * @param value the cached value of the feed, null if none
+     * @return true if the feed must be backfilled, it is then recorded as backfilled at the given time
+     */
+    private boolean claimBackfill(CacheKey key, CacheValue value, long now) {
+        long lastPingTime = (null == value) ? 0L : lastPingTime(key, value);
+        AtomicLong backfillTime = backfillTimes.get(key);
+        if (null == backfillTime) {
+            backfillTime = backfillTimes.computeIfAbsent(key, k -> new AtomicLong());
+        }
+        long previous;
+        do {
+            previous = backfillTime.get();
+            if (previous > 0L && previous >= lastPingTime) {
+                return false;
+            }
+        } while (!backfillTime.compareAndSet(previous, now));
+        return true;
+    }
 
-        // Fetch from hwkinventory all avail metrics for the feed on this tenant
-        Observable<org.hawkular.inventory.api.model.Metric.Blueprint> metricsObs = InventoryHelper
-                .listMetricTypes(metricsService, key.getTenantId(), key.getFeedId())
-                .filter(mt -> MetricDataType.AVAILABILITY == mt.getMetricDataType())
-                .flatMap(mt -> InventoryHelper.listMetricsForType(metricsService, key.getTenantId(), key.getFeedId(),
-                        mt));
+    /**
+     * Forget the backfill of a feed on a tenant that could not be written, so that the next detection of the feed,
+     * e.g. a forced backfill, backfills it again. With feed detection the claim is held by the feed key.
+     */
+    private void unclaimBackfill(CacheKey key) {
+        backfillTimes.remove(key);
+        if (feedDetection) {
+            backfillTimes.remove(new CacheKey(FEED_TENANT, key.getMetricId()));
+        }
+    }
 
+    /**
+     * Backfill a feed, on its tenant or, for a feed key, on all of its tenants.
+     *
+     * @param value the cached value of the feed, null if none
+     */
+    private void doBackfill(CacheKey key, CacheValue value) {
         long now = System.currentTimeMillis();
+        if (!claimBackfill(key, value, now)) {
+            log.debugf("Feed %s has not reported since its last backfill, skipping backfill", key);
+            cancelJob(key);
+            releaseKey(key);
+            return;
+        }
+        if (null == value) {
+            value = new CacheValue(now, 0L);
+        }
+
+        // only backfill once, so stop the backfill job
+        long lastPingTime = lastPingTime(key, value);
+        cancelJob(key);
+        localPings.remove(key);
+
+        // mark the cache entry as no longer having a backfill job running, keeping the latest ping
+        backfillCache.merge(key, new CacheValue(lastPingTime, 0L),
+                (previous, reset) -> new CacheValue(
+                        Math.max(previous.getLastUpdateTime(), reset.getLastUpdateTime()), 0L));
+
+        if (key.isFeedKey()) {
+            tenantsOf(key.getFeedId())
+                    .subscribe(tenantId -> backfillTenant(internKey(tenantId, key.getMetricId()), now),
+                            err -> log.errorf(err, "Could not resolve the tenants to backfill for %s", key));
+            releaseKey(key);
+        } else {
+            backfillTenant(key, now);
+        }
+    }
 
+    /**
+     * Write the backfill avails of a feed on a tenant.
+     */
+    private void backfillTenant(CacheKey key, long now) {
         List<DataPoint<AvailabilityType>> unknown = new ArrayList<>(1);
         unknown.add(new DataPoint<>(now, AvailabilityType.UNKNOWN));
 
         List<DataPoint<AvailabilityType>> down = new ArrayList<>(1);
         down.add(new DataPoint<>(now, AvailabilityType.DOWN));
 
-        Observable<Metric<AvailabilityType>> availabilities = metricsObs.map(invMetric -> {
-            // Set UNKNOWN for all remotely monitored avail metrics reported by this feed/tenant
-            // Set DOWN for all locally monitored avail metrics, or by default, reported by this feed/tenant
-            MetricId<AvailabilityType> metricId = new MetricId<>(key.getTenantId(), MetricType.AVAILABILITY,
-                    invMetric.getId());
-            String monitoringType = (String) invMetric.getProperties().get(MONITORING_TYPE_KEY);
-            List<DataPoint<AvailabilityType>> availList = MONITORING_TYPE_VALUE_REMOTE
-                    .equalsIgnoreCase(monitoringType) ? unknown : down;
-            Metric<AvailabilityType> backfillAvail = new Metric<>(metricId, availList);
-            return backfillAvail;
-        });
+        // Set UNKNOWN for all remotely monitored avail metrics reported by this feed/tenant
+        // Set DOWN for all locally monitored avail metrics, or by default, reported by this feed/tenant
+        Observable<Metric<AvailabilityType>> availabilities;
+        List<FeedAvailabilityRegistry.AvailabilityMetric> registered = registry.get(key);
+        registry.remove(key);
+        if (null != registered) {
+            availabilities = Observable.from(registered)
+                    .map(avail -> new Metric<>(avail.getMetricId(), avail.isRemote() ? unknown : down));
+        } else {
+            // Not registered yet, fetch from hwkinventory all avail metrics for the feed on this tenant
+            availabilities = InventoryHelper
+                    .listAvailabilityMetrics(metricsService, key.getTenantId(), key.getFeedId())
+                    .map(invMetric -> {
+                        MetricId<AvailabilityType> metricId = new MetricId<>(key.getTenantId(),
+                                MetricType.AVAILABILITY, invMetric.getId());
+                        return new Metric<>(metricId, isRemotelyMonitored(invMetric) ? unknown : down);
+                    });
+        }
 
         // Set DOWN avail for the feed/tenant itself
         MetricId<AvailabilityType> metricId = new MetricId<>(key.getTenantId(), MetricType.AVAILABILITY,
@@ -410,31 +1385,27 @@ public class BackfillCacheManager implements BackfillCache {
         Metric<AvailabilityType> backfillAvail = new Metric<>(metricId, down);
         availabilities = availabilities.concatWith(Observable.just(backfillAvail));
 
-        // Push the avail to hwkmetrics
-        Observable<Void> observable = metricsService.addDataPoints(MetricType.AVAILABILITY, availabilities);
-        observable.subscribe(new Subscriber<Void>() {
+        // Push the avail to hwkmetrics, along with those of the other feeds backfilled at the same time
+        backfillExecutor.submit(key, availabilities);
 
-            @Override
-            public void onCompleted() {
-                if (log.isDebugEnabled()) {
-                    log.debugf("Successful backfill of Feed %s", key);
-                } else {
-                    log.infof("Successful backfill of Feed %s", key);
-                }
-            }
+        // the feed is no longer tracked until it pings again
+        releaseKey(key);
+    }
 
-            @Override
-            public void onError(Throwable arg0) {
-                log.warnf(arg0, "Failed to backfill Feed %s", key);
-            }
+    /**
+     * @return true if the avail metric is remotely monitored by its feed, its avail is then UNKNOWN once backfilled
+     */
+    static boolean isRemotelyMonitored(org.hawkular.inventory.api.model.Metric.Blueprint invMetric) {
+        String monitoringType = (String) invMetric.getProperties().get(MONITORING_TYPE_KEY);
+        return MONITORING_TYPE_VALUE_REMOTE.equalsIgnoreCase(monitoringType);
+    }
 
-            @Override
-            public void onNext(Void arg0) {
-            }
-        });
+    private boolean initServices() {
+        // called on every forced backfill and registry refresh, no lock once looked up
+        return (null != metricsService) || lookupServices();
     }
 
-    private synchronized boolean initServices() {
+    private synchronized boolean lookupServices() {
         try {
             InitialContext ctx = new InitialContext();
 
@@ -448,65 +1419,102 @@ public class BackfillCacheManager implements BackfillCache {
         return (null != metricsService);
     }
 
-    private void cancelJob(CacheKey key) {
-        ScheduledFuture<?> job = jobMap.get(key);
-        if (null != job) {
-            job.cancel(true);
-        }
+    private void maintain() {
         try {
-            jobMap.remove(key);
+            expireBackfillTimes(System.currentTimeMillis());
+            if (log.isDebugEnabled()) {
+                log.debugf("Inventory cache %s", InventoryHelper.getInventoryCacheStats());
+            }
+            BackfillSubmitter.Stats submitterStats = submitter.getStats();
+            if (submitterStats.getOverflowed() > submitOverflowed) {
+                log.warnf("Submit queue full, %d bus messages applied on their delivery thread in the last %d s. "
+                        + "Consider raising %s", submitterStats.getOverflowed() - submitOverflowed,
+                        MAINTENANCE_PERIOD_SECS, PROP_SUBMIT_THREADS);
+            }
+            submitOverflowed = submitterStats.getOverflowed();
+            log.debugf("Backfill submitter %s", submitterStats);
         } catch (Exception e) {
-            log.errorf("Failed to cancel BackfillCheck job for %s", key);
+            log.warnf(e, "Failed backfill maintenance, will try again in %d s", MAINTENANCE_PERIOD_SECS);
         }
     }
 
-    public class BackfillCheckJob implements Runnable {
-
-        private CacheKey key;
-        private long maxQuietPeriodMs;
+    /**
+     * Drop the backfill times no longer needed, bounding them to the feeds recently backfilled. A forced backfill
+     * time only matters within the force window. A backfill time only prevents backfilling a feed again before it
+     * pings: past the longest max quiet time of a feed its detector is gone, only a late forced backfill could
+     * backfill it again.
+     */
+    private void expireBackfillTimes(long now) {
+        forcedBackfills.values().removeIf(forcedTime -> (now - forcedTime.get()) >= FORCE_WINDOW_MS);
+        long retentionMs = Math.max(FORCE_WINDOW_MS, (long) (PING_PERIOD_MIN_SECS * 1000L * PING_PERIOD_FACTOR));
+        backfillTimes.values().removeIf(backfillTime -> (now - backfillTime.get()) >= retentionMs);
+    }
 
-        public BackfillCheckJob(CacheKey key, long maxQuietPeriodMs) {
-            super();
-            this.key = key;
-            this.maxQuietPeriodMs = maxQuietPeriodMs;
+    private void cancelJob(CacheKey key) {
+        try {
+            scheduler.cancel(key);
+        } catch (Exception e) {
+            log.errorf("Failed to cancel BackfillCheck job for %s", key);
         }
+    }
 
-        @Override
-        public void run() {
-            CacheValue value = backfillCache.get(key);
-            if (null == value) {
-                log.warnf("Did not find expected cache entry. Canceling backfill job for %s", key);
-                cancelJob(key);
-                return;
-            }
-
-            long quietPeriodMs = System.currentTimeMillis() - value.lastUpdateTime;
-            if (quietPeriodMs <= maxQuietPeriodMs) {
-                log.tracef("FEED IS REPORTING: %s", key);
-                return;
-            }
+    /**
+     * The {@link BackfillScheduler.FeedCheck} performed when the deadline of a feed comes due.
+     *
+     * @return the time of the next check, or -1 if the feed no longer needs to be checked
+     */
+    private long checkFeed(CacheKey key) {
+        if (key.isFeedKey() != feedDetection) {
+            log.infof("Removing the ping state of %s, left over by the other detection mode", key);
+            backfillCache.remove(key);
+            return -1L;
+        }
+        CacheValue value = backfillCache.get(key);
+        if (null == value) {
+            log.warnf("Did not find expected cache entry. Canceling backfill job for %s", key);
+            return -1L;
+        }
+        if (!value.hasBackfillJob()) {
+            log.debugf("Cache entry no longer expects a backfill job. Canceling backfill job for %s", key);
+            return -1L;
+        }
 
-            // backfill situation
-            log.infof("Feed %s has not reported for %d ms and will be backfilled.", key, quietPeriodMs);
-            if (!initServices()) {
-                log.warnf("Could not perform backfill, not all services are available. Metrics=%s", metricsService);
-                return;
-            }
-            doBackfill(key, value);
+        long now = System.currentTimeMillis();
+        long maxQuietPeriodMs = value.getMaxQuietPeriodMs();
+        long lastPingTime = lastPingTime(key, value);
+        long quietPeriodMs = now - lastPingTime;
+        if (quietPeriodMs <= maxQuietPeriodMs) {
+            log.tracef("FEED IS REPORTING: %s", key);
+            return lastPingTime + maxQuietPeriodMs + 1;
         }
 
+        // backfill situation
+        log.infof("Feed %s has not reported for %d ms and will be backfilled.", key, quietPeriodMs);
+        if (!initServices()) {
+            log.warnf("Could not perform backfill, not all services are available. Metrics=%s", metricsService);
+            return now + (JOB_PERIOD_SECS * 1000L);
+        }
+        doBackfill(key, value);
+        return -1L;
     }
 
-    public static class CacheKey {
-        private String tenantId;
-        private String metricId;
-        private String feedId;
+    /**
+     * Replicated on every ping in HA, see {@link CacheKeyExternalizer} for its compact encoding.
+     */
+    @SerializeWith(CacheKeyExternalizer.class)
+    public static class CacheKey implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String tenantId;
+        private final String metricId;
+        private final int hashCode;
+        private transient String feedId;
 
         public CacheKey(String tenantId, String metricId) {
             super();
             this.tenantId = tenantId;
             this.metricId = metricId;
-            this.feedId = metricId.substring(FEED_PREFIX.length());
+            this.hashCode = computeHashCode(tenantId, metricId);
         }
 
         public String getTenantId() {
@@ -517,12 +1525,26 @@ public class BackfillCacheManager implements BackfillCache {
             return metricId;
         }
 
+        /**
+         * @return true if the key tracks a feed on all of its tenants, see {@link BackfillCacheManager#FEED_TENANT}
+         */
+        public boolean isFeedKey() {
+            return FEED_TENANT.equals(tenantId);
+        }
+
+        /**
+         * @return the feedId, derived from the metricId on first use
+         */
         public String getFeedId() {
-            return feedId;
+            String result = feedId;
+            if (null == result) {
+                result = metricId.substring(FEED_PREFIX.length());
+                feedId = result;
+            }
+            return result;
         }
 
-        @Override
-        public int hashCode() {
+        private static int computeHashCode(String tenantId, String metricId) {
             final int prime = 31;
             int result = 1;
             result = prime * result + ((metricId == null) ? 0 : metricId.hashCode());
@@ -530,6 +1552,11 @@ public class BackfillCacheManager implements BackfillCache {
             return result;
         }
 
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (this == obj)
@@ -539,6 +1566,8 @@ public class BackfillCacheManager implements BackfillCache {
             if (getClass() != obj.getClass())
                 return false;
             CacheKey other = (CacheKey) obj;
+            if (hashCode != other.hashCode)
+                return false;
             if (metricId == null) {
                 if (other.metricId != null)
                     return false;
@@ -558,22 +1587,56 @@ public class BackfillCacheManager implements BackfillCache {
         }
     }
 
-    public static class CacheValue {
-        private long lastUpdateTime;
-        private long maxQuietPeriodMs; // <= 0 when there is no active timer
+    /**
+     * Marshals a {@link CacheKey} as its tenantId and its feedId, the feed avail metricId prefix is not shipped.
+     * The hash code and feedId are derived on the receiving side.
+     */
+    public static class CacheKeyExternalizer implements Externalizer<CacheKey> {
+        private static final long serialVersionUID = 1L;
 
-        public CacheValue() {
-            super();
-            this.lastUpdateTime = System.currentTimeMillis();
-            this.maxQuietPeriodMs = 0;
+        private static final byte FEED_METRIC = 0;
+        private static final byte OTHER_METRIC = 1;
+
+        @Override
+        public void writeObject(ObjectOutput output, CacheKey key) throws IOException {
+            output.writeUTF(key.getTenantId());
+            if (key.getMetricId().startsWith(FEED_PREFIX)) {
+                output.writeByte(FEED_METRIC);
+                output.writeUTF(key.getFeedId());
+            } else {
+                output.writeByte(OTHER_METRIC);
+                output.writeUTF(key.getMetricId());
+            }
         }
 
-        public long getLastUpdateTime() {
-            return lastUpdateTime;
+        @Override
+        public CacheKey readObject(ObjectInput input) throws IOException {
+            String tenantId = input.readUTF();
+            byte kind = input.readByte();
+            String id = input.readUTF();
+            return (FEED_METRIC == kind) ? new CacheKey(tenantId, FEED_PREFIX + id) : new CacheKey(tenantId, id);
         }
+    }
+
+    /**
+     * Immutable, cache updates always replace the value. Replicated on every ping in HA, see
+     * {@link CacheValueExternalizer} for its compact encoding.
+     */
+    @SerializeWith(CacheValueExternalizer.class)
+    public static class CacheValue implements Serializable {
+        private static final long serialVersionUID = 1L;
 
-        public void setLastUpdateTime(long lastUpdateTime) {
+        private final long lastUpdateTime;
+        private final long maxQuietPeriodMs; // <= 0 when there is no active timer
+
+        public CacheValue(long lastUpdateTime, long maxQuietPeriodMs) {
+            super();
             this.lastUpdateTime = lastUpdateTime;
+            this.maxQuietPeriodMs = maxQuietPeriodMs;
+        }
+
+        public long getLastUpdateTime() {
+            return lastUpdateTime;
         }
 
         public boolean hasBackfillJob() {
@@ -584,8 +1647,25 @@ public class BackfillCacheManager implements BackfillCache {
             return maxQuietPeriodMs;
         }
 
-        public void setMaxQuietPeriodMs(long maxQuietPeriodMs) {
-            this.maxQuietPeriodMs = maxQuietPeriodMs;
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + (int) (lastUpdateTime ^ (lastUpdateTime >>> 32));
+            result = prime * result + (int) (maxQuietPeriodMs ^ (maxQuietPeriodMs >>> 32));
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            CacheValue other = (CacheValue) obj;
+            return lastUpdateTime == other.lastUpdateTime && maxQuietPeriodMs == other.maxQuietPeriodMs;
         }
 
         @Override
@@ -593,4 +1673,25 @@ public class BackfillCacheManager implements BackfillCache {
             return "CacheValue [lastUpdateTime=" + lastUpdateTime + ", maxQuietPeriodMs=" + maxQuietPeriodMs + "]";
         }
     }
+
+    /**
+     * Marshals a {@link CacheValue} as two variable length numbers: the ping time (6 bytes until 2109) and the max
+     * quiet period (at most 4 bytes, 1 byte when there is no backfill job).
+     */
+    public static class CacheValueExternalizer implements Externalizer<CacheValue> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void writeObject(ObjectOutput output, CacheValue value) throws IOException {
+            UnsignedNumeric.writeUnsignedLong(output, value.getLastUpdateTime());
+            UnsignedNumeric.writeUnsignedLong(output, Math.max(0L, value.getMaxQuietPeriodMs()));
+        }
+
+        @Override
+        public CacheValue readObject(ObjectInput input) throws IOException {
+            long lastUpdateTime = UnsignedNumeric.readUnsignedLong(input);
+            long maxQuietPeriodMs = UnsignedNumeric.readUnsignedLong(input);
+            return new CacheValue(lastUpdateTime, maxQuietPeriodMs);
+        }
+    }
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+import org.hawkular.metrics.core.service.MetricsService;
+import org.hawkular.metrics.model.AvailabilityType;
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricType;
+import org.jboss.logging.Logger;
+
+import rx.Observable;
+
+/**
+ * <p>
+ * Performs the backfills of the dead feeds. When many feeds die at once, e.g. on a network partition, their backfills
+ * are queued instead of all reading inventory and writing avails at once:</p>
+ * <ul>
+ * <li>At most maxConcurrency backfills resolve the avails to write at once, the others wait in their tenant queue.
+ * </li>
+ * <li>The tenant queues are served round-robin, so that the outage of a large tenant does not delay the backfills of
+ * the others.</li>
+ * <li>The avails resolved within a batch window are written by a single addDataPoints, flushed early once holding
+ * batchMaxMetrics metrics.</li>
+ * <li>A failed write is retried a batch window later, up to MAX_WRITE_ATTEMPTS times. The feeds of a batch that could
+ * not be written, or whose avails could not be resolved, are handed to the failure callback.</li>
+ * </ul>
+ * <p>
+ * All the state is confined to a single thread, which never blocks: resolutions and writes are asynchronous.</p>
+ *
+ * @author Joel Takvorian
+ */
+public class BackfillExecutor {
+
+    private final Logger log = Logger.getLogger(BackfillExecutor.class);
+
+    /**
+     * The number of times a batch is written before its feeds are given up.
+     */
+    static final int MAX_WRITE_ATTEMPTS = 3;
+
+    private final int maxConcurrency;
+    private final long batchWindowMs;
+    private final int batchMaxMetrics;
+    private final Supplier<MetricsService> metricsService;
+    private final Consumer<CacheKey> onFailure;
+    private final ScheduledExecutorService executor;
+
+    // confined to the executor thread
+    private final Map<String, Queue<Backfill>> tenantQueues = new LinkedHashMap<>();
+    private int queued;
+    private int resolving;
+    private final List<Metric<AvailabilityType>> batch = new ArrayList<>();
+    private final List<CacheKey> batchFeeds = new ArrayList<>();
+    private boolean flushScheduled;
+
+    /**
+     * @param maxConcurrency The max number of backfills resolving their avails at once
+     * @param batchWindowMs The max time the resolved avails wait to be written with others
+     * @param batchMaxMetrics The number of avails written at once
+     * @param metricsService Supplies the service the avails are written to
+     * @param onFailure Called with each feed whose backfill failed, on any thread
+     */
+    public BackfillExecutor(int maxConcurrency, long batchWindowMs, int batchMaxMetrics,
+            Supplier<MetricsService> metricsService, Consumer<CacheKey> onFailure) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.batchWindowMs = Math.max(0L, batchWindowMs);
+        this.batchMaxMetrics = Math.max(1, batchMaxMetrics);
+        this.metricsService = metricsService;
+        this.onFailure = onFailure;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "hawkular-backfill-executor");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+    }
+
+    /**
+     * Queue the backfill of a feed.
+     *
+     * @param availabilities Resolves the avails to write, subscribed once the backfill is started
+     */
+    public void submit(CacheKey key, Observable<Metric<AvailabilityType>> availabilities) {
+        run(() -> {
+            tenantQueues.computeIfAbsent(key.getTenantId(), t -> new ArrayDeque<>())
+                    .add(new Backfill(key, availabilities));
+            ++queued;
+            startBackfills();
+        });
+    }
+
+    /**
+     * Write the resolved avails and stop. The queued backfills that did not start are dropped, they are logged.
+     */
+    public void shutdown() {
+        executor.execute(() -> {
+            if (queued > 0) {
+                log.warnf("Dropping %d queued backfills on shutdown", queued);
+                tenantQueues.values().forEach(queue -> queue.forEach(
+                        backfill -> log.debugf("Dropped backfill of %s", backfill.key)));
+                tenantQueues.clear();
+                queued = 0;
+            }
+            flush();
+        });
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10L, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Start queued backfills up to the max concurrency, taking one per tenant in turn.
+     */
+    private void startBackfills() {
+        while (resolving < maxConcurrency && queued > 0) {
+            // the first tenant of the round, it then goes to the end of the round, or leaves it if it has no more
+            Iterator<Map.Entry<String, Queue<Backfill>>> tenants = tenantQueues.entrySet().iterator();
+            Map.Entry<String, Queue<Backfill>> tenant = tenants.next();
+            String tenantId = tenant.getKey();
+            Queue<Backfill> queue = tenant.getValue();
+            tenants.remove();
+            Backfill backfill = queue.poll();
+            if (!queue.isEmpty()) {
+                tenantQueues.put(tenantId, queue);
+            }
+            if (null != backfill) {
+                --queued;
+                start(backfill);
+            }
+        }
+    }
+
+    private void start(Backfill backfill) {
+        ++resolving;
+        backfill.availabilities
+                .toList()
+                .subscribe(
+                        metrics -> run(() -> {
+                            --resolving;
+                            batch.addAll(metrics);
+                            batchFeeds.add(backfill.key);
+                            if (batch.size() >= batchMaxMetrics) {
+                                flush();
+                            } else if (!flushScheduled) {
+                                flushScheduled = true;
+                                executor.schedule(this::flush, batchWindowMs, TimeUnit.MILLISECONDS);
+                            }
+                            startBackfills();
+                        }),
+                        err -> run(() -> {
+                            --resolving;
+                            log.warnf(err, "Failed to backfill Feed %s", backfill.key);
+                            fail(backfill.key);
+                            startBackfills();
+                        }));
+    }
+
+    /**
+     * Run on the executor thread, unless shut down.
+     */
+    private void run(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            log.debugf("Backfill executor is shut down, ignoring %s", task);
+        }
+    }
+
+    private void flush() {
+        flushScheduled = false;
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<Metric<AvailabilityType>> metrics = new ArrayList<>(batch);
+        List<CacheKey> feeds = new ArrayList<>(batchFeeds);
+        batch.clear();
+        batchFeeds.clear();
+        write(metrics, feeds, 1);
+    }
+
+    private void write(List<Metric<AvailabilityType>> metrics, List<CacheKey> feeds, int attempt) {
+        metricsService.get().addDataPoints(MetricType.AVAILABILITY, Observable.from(metrics))
+                .subscribe(
+                        v -> {
+                        },
+                        err -> {
+                            if (attempt < MAX_WRITE_ATTEMPTS) {
+                                log.warnf(err, "Failed to backfill %d Feeds, %d avails, attempt %d of %d",
+                                        feeds.size(), metrics.size(), attempt, MAX_WRITE_ATTEMPTS);
+                                retry(metrics, feeds, attempt + 1);
+                            } else {
+                                log.errorf(err, "Failed to backfill %d Feeds, %d avails, giving up",
+                                        feeds.size(), metrics.size());
+                                log.debugf("Failed backfill of Feeds: %s", feeds);
+                                feeds.forEach(this::fail);
+                            }
+                        },
+                        () -> {
+                            log.infof("Successful backfill of %d Feeds, %d avails", feeds.size(), metrics.size());
+                            log.debugf("Successful backfill of Feeds: %s", feeds);
+                        });
+    }
+
+    private void retry(List<Metric<AvailabilityType>> metrics, List<CacheKey> feeds, int attempt) {
+        try {
+            executor.schedule(() -> write(metrics, feeds, attempt), batchWindowMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.warnf("Backfill executor is shut down, giving up the backfill of %d Feeds", feeds.size());
+            feeds.forEach(this::fail);
+        }
+    }
+
+    private void fail(CacheKey key) {
+        try {
+            onFailure.accept(key);
+        } catch (Exception e) {
+            log.warnf(e, "Failed to release the failed backfill of Feed %s", key);
+        }
+    }
+
+    private static final class Backfill {
+        private final CacheKey key;
+        private final Observable<Metric<AvailabilityType>> availabilities;
+
+        Backfill(CacheKey key, Observable<Metric<AvailabilityType>> availabilities) {
+            this.key = key;
+            this.availabilities = availabilities;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+
+/**
+ * Owns the ping deadlines of the feeds watched by {@link BackfillCacheManager}. When a deadline comes due the
+ * scheduler calls back the {@link FeedCheck} it was built with, which decides whether the feed must be backfilled
+ * and when it should be checked next.
+ *
+ * @author Joel Takvorian
+ */
+public interface BackfillScheduler {
+
+    /**
+     * Callback invoked by the scheduler when the deadline of a feed comes due.
+     */
+    @FunctionalInterface
+    interface FeedCheck {
+
+        /**
+         * @param key The feed/tenant to check
+         * @return The time (ms since epoch) at which the feed must be checked again, or a negative value if the
+         * feed no longer needs to be checked.
+         */
+        long check(CacheKey key);
+    }
+
+    /**
+     * Arm the backfill detector for the given key. Ignored if the key is already scheduled.
+     *
+     * @param key The feed/tenant to watch
+     * @param deadline The time (ms since epoch) before which the feed does not need to be checked
+     * @return true if the key was scheduled, false if it was already scheduled
+     */
+    boolean schedule(CacheKey key, long deadline);
+
+    /**
+     * Notify the scheduler that the feed has pinged. Schedulers driven by deadlines push the feed's deadline
+     * forward, the others ignore it and rely on the {@link FeedCheck} to compute the next deadline.
+     *
+     * @param key The feed/tenant that pinged
+     * @param deadline The new deadline (ms since epoch) of the feed
+     */
+    default void ping(CacheKey key, long deadline) {
+    }
+
+    /**
+     * Disarm the backfill detector for the given key.
+     *
+     * @param key The feed/tenant to stop watching
+     * @return true if the key was scheduled
+     */
+    boolean cancel(CacheKey key);
+
+    /**
+     * @return true if a backfill detector is armed for the given key
+     */
+    boolean isScheduled(CacheKey key);
+
+    /**
+     * @return the number of armed backfill detectors
+     */
+    int size();
+
+    /**
+     * Cancel all detectors and release the scheduler threads.
+     */
+    void shutdown();
+}
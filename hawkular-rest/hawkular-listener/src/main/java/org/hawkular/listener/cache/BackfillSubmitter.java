@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Hands the work of the bus listeners, the pings and forced backfills, over to a few threads of its own, so that the
+ * message delivery threads return right away whatever the latency of the backfill cache. The queue is bounded: once
+ * full, the work is performed on the submitting thread, slowing the bus consumption down instead of dropping pings.
+ *
+ * @author Joel Takvorian
+ */
+public class BackfillSubmitter {
+
+    private final Logger log = Logger.getLogger(BackfillSubmitter.class);
+
+    private final ThreadPoolExecutor executor;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * @param threads The number of threads performing the submitted work
+     * @param queueSize The max number of submissions waiting for a thread
+     */
+    public BackfillSubmitter(int threads, int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        int poolSize = Math.max(1, threads);
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(Math.max(1, queueSize)), r -> {
+                    Thread t = new Thread(r, "hawkular-backfill-submitter-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Perform the work asynchronously, or right away if the queue is full or the submitter is shut down.
+     */
+    public void submit(Runnable work) {
+        submitted.increment();
+        long submitTime = System.nanoTime();
+        try {
+            executor.execute(() -> perform(work, submitTime));
+        } catch (RejectedExecutionException e) {
+            overflowed.increment();
+            perform(work, submitTime);
+        }
+    }
+
+    private void perform(Runnable work, long submitTime) {
+        try {
+            work.run();
+        } catch (Exception e) {
+            // the submitter has no caller to report to
+            log.errorf(e, "Failed submitted backfill work %s", work);
+        } finally {
+            long latencyNanos = System.nanoTime() - submitTime;
+            totalLatencyNanos.add(latencyNanos);
+            maxLatencyNanos.accumulateAndGet(latencyNanos, Math::max);
+            processed.increment();
+        }
+    }
+
+    /**
+     * @return the current queue depth and the submission counts and latencies so far
+     */
+    public Stats getStats() {
+        return new Stats(executor.getQueue().size(), submitted.sum(), processed.sum(), overflowed.sum(),
+                totalLatencyNanos.sum(), maxLatencyNanos.get());
+    }
+
+    /**
+     * Perform the queued work and stop.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10L, TimeUnit.SECONDS)) {
+                log.warnf("Dropping %d queued backfill submissions on shutdown", executor.shutdownNow().size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A snapshot of the submitter statistics. The latency of a submission is the time from its submission to the end
+     * of its processing, queueing included.
+     */
+    public static final class Stats {
+        private final int queueDepth;
+        private final long submitted;
+        private final long processed;
+        private final long overflowed;
+        private final long totalLatencyNanos;
+        private final long maxLatencyNanos;
+
+        Stats(int queueDepth, long submitted, long processed, long overflowed, long totalLatencyNanos,
+              long maxLatencyNanos) {
+            this.queueDepth = queueDepth;
+            this.submitted = submitted;
+            this.processed = processed;
+            this.overflowed = overflowed;
+            this.totalLatencyNanos = totalLatencyNanos;
+            this.maxLatencyNanos = maxLatencyNanos;
+        }
+
+        /**
+         * @return the number of submissions waiting for a thread
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public long getProcessed() {
+            return processed;
+        }
+
+        /**
+         * @return the number of submissions performed on the submitting thread, the queue being full
+         */
+        public long getOverflowed() {
+            return overflowed;
+        }
+
+        public double getMeanLatencyMs() {
+            return (0L == processed) ? 0.0 : (totalLatencyNanos / 1e6) / processed;
+        }
+
+        public double getMaxLatencyMs() {
+            return maxLatencyNanos / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Stats [queueDepth=%d, submitted=%d, processed=%d, overflowed=%d, "
+                    + "meanLatencyMs=%.3f, maxLatencyMs=%.3f]", queueDepth, submitted, processed, overflowed,
+                    getMeanLatencyMs(), getMaxLatencyMs());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.function.LongConsumer;
+
+/**
+ * A budget of bytes shared by concurrent users, e.g. the inventories being reassembled. A reservation that does not
+ * fit waits, without blocking its thread, until enough bytes are released: it is granted by the release, on the
+ * releasing thread. Reservations are granted in order, so a large one is not starved by smaller ones.
+ *
+ * @author Joel Takvorian
+ */
+final class ByteBudget {
+
+    private final long capacity;
+
+    // guarded by this
+    private long available;
+    private final Queue<Waiter> waiters = new ArrayDeque<>();
+
+    /**
+     * @param capacity The bytes that can be reserved at once
+     */
+    ByteBudget(long capacity) {
+        this.capacity = capacity;
+        this.available = capacity;
+    }
+
+    /**
+     * Reserve bytes, a reservation larger than the capacity takes the whole budget. The granted bytes must be
+     * released once no longer used.
+     *
+     * @param onGranted Called with the granted bytes, right away if they are available
+     */
+    void reserve(long bytes, LongConsumer onGranted) {
+        long granted = Math.max(0L, Math.min(bytes, capacity));
+        synchronized (this) {
+            if (!waiters.isEmpty() || available < granted) {
+                waiters.add(new Waiter(granted, onGranted));
+                return;
+            }
+            available -= granted;
+        }
+        onGranted.accept(granted);
+    }
+
+    /**
+     * Release granted bytes, granting the waiting reservations that now fit.
+     */
+    void release(long bytes) {
+        List<Waiter> ready = new ArrayList<>();
+        synchronized (this) {
+            available = Math.min(capacity, available + bytes);
+            while (!waiters.isEmpty() && waiters.peek().bytes <= available) {
+                Waiter waiter = waiters.poll();
+                available -= waiter.bytes;
+                ready.add(waiter);
+            }
+        }
+        ready.forEach(waiter -> waiter.onGranted.accept(waiter.bytes));
+    }
+
+    synchronized long getAvailable() {
+        return available;
+    }
+
+    synchronized int getWaiting() {
+        return waiters.size();
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    private static final class Waiter {
+        private final long bytes;
+        private final LongConsumer onGranted;
+
+        Waiter(long bytes, LongConsumer onGranted) {
+            this.bytes = bytes;
+            this.onGranted = onGranted;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * <p>
+ * Immutable consistent hash ring assigning ids (e.g. feed avail metric ids) to cluster members. Each member is
+ * placed on the ring at several pseudo-random points (virtual nodes), and an id is owned by the member of the first
+ * point at or after the id's hash. Adding or removing one member of N only moves about 1/N of the ids, and the
+ * virtual nodes keep the share of each member close to 1/N.</p>
+ * <p>
+ * Every member must build the ring from the same member names to agree on ownership. Lookups do not allocate.</p>
+ *
+ * @author Joel Takvorian
+ */
+public final class ConsistentHashRing {
+
+    private final int[] points;
+    private final String[] owners;
+    private final List<String> members;
+
+    /**
+     * @param members The names of the cluster members, must be the same on every member
+     * @param virtualNodes The number of points of each member on the ring
+     */
+    public ConsistentHashRing(Collection<String> members, int virtualNodes) {
+        if (members.isEmpty()) {
+            throw new IllegalArgumentException("A hash ring needs at least one member");
+        }
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes must be greater than 0: " + virtualNodes);
+        }
+        // sorted to be independent of the member order, and colliding points go to the same member everywhere
+        TreeSet<String> sortedMembers = new TreeSet<>(members);
+        TreeMap<Integer, String> ring = new TreeMap<>();
+        for (String member : sortedMembers) {
+            for (int i = 0; i < virtualNodes; ++i) {
+                ring.putIfAbsent(hash(member + "#" + i), member);
+            }
+        }
+        this.points = new int[ring.size()];
+        this.owners = new String[ring.size()];
+        int i = 0;
+        for (Map.Entry<Integer, String> point : ring.entrySet()) {
+            points[i] = point.getKey();
+            owners[i] = point.getValue();
+            ++i;
+        }
+        this.members = Collections.unmodifiableList(new ArrayList<>(sortedMembers));
+    }
+
+    /**
+     * @return the name of the member owning the given id
+     */
+    public String ownerOf(String id) {
+        int index = Arrays.binarySearch(points, hash(id));
+        if (index < 0) {
+            // insertion point, wrapping around the ring
+            index = -index - 1;
+            if (index == points.length) {
+                index = 0;
+            }
+        }
+        return owners[index];
+    }
+
+    /**
+     * @return the sorted member names
+     */
+    public List<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * @return the fraction of the hash space owned by each member, the ideal being 1/N
+     */
+    public Map<String, Double> getHashSpaceShares() {
+        Map<String, Double> result = new TreeMap<>();
+        for (String member : members) {
+            result.put(member, 0.0);
+        }
+        double space = Math.pow(2, 32);
+        for (int i = 0; i < points.length; ++i) {
+            // the point owns the arc from the previous point (excluded) to itself (included)
+            long previous = (0 == i) ? (long) points[points.length - 1] - (long) Math.pow(2, 32) : points[i - 1];
+            long arc = (long) points[i] - previous;
+            result.merge(owners[i], arc / space, Double::sum);
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of the given ids owned by each member
+     */
+    public Map<String, Integer> getDistribution(Iterable<String> ids) {
+        Map<String, Integer> result = new TreeMap<>();
+        for (String member : members) {
+            result.put(member, 0);
+        }
+        for (String id : ids) {
+            result.merge(ownerOf(id), 1, Integer::sum);
+        }
+        return result;
+    }
+
+    /**
+     * String hash codes are cached by the String, so this is cheap. The murmur3 finalizer spreads them over the
+     * whole int range.
+     */
+    static int hash(String id) {
+        int h = id.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "ConsistentHashRing [members=" + members + ", points=" + points.length + "]";
+    }
+}
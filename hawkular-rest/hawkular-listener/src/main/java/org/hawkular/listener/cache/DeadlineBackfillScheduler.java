@@ -0,0 +1,251 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+import org.jboss.logging.Logger;
+
+/**
+ * <p>
+ * Deadline driven {@link BackfillScheduler}. Every ping pushes the deadline of its feed forward in a deadline
+ * ordered index, and a single sweeper thread sleeps until the earliest deadline of the index comes due. A feed that
+ * keeps pinging never reaches its deadline, so it is never checked: the sweeper only wakes up for feeds that have
+ * actually stopped reporting, and detects them exactly at their deadline.</p>
+ * <p>
+ * Pushing a deadline forward is O(log n) in the number of watched feeds. Due checks are handed off to a small
+ * pool of worker threads so that a slow check never delays the sweeper.</p>
+ *
+ * @author Joel Takvorian
+ */
+public class DeadlineBackfillScheduler implements BackfillScheduler {
+
+    private static final long ERROR_RETRY_MS = 1000L;
+
+    private final Logger log = Logger.getLogger(DeadlineBackfillScheduler.class);
+
+    /**
+     * The current deadline of every watched feed. A due deadline stays here while its check is running.
+     */
+    private final Map<CacheKey, Deadline> deadlines = new ConcurrentHashMap<>();
+
+    /**
+     * The deadlines not yet due, earliest first.
+     */
+    private final ConcurrentSkipListMap<Deadline, CacheKey> index = new ConcurrentSkipListMap<>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    private final FeedCheck feedCheck;
+
+    private final ExecutorService workers;
+
+    private final Thread sweeper;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param threads The number of worker threads running the due checks
+     * @param feedCheck The check performed when a deadline comes due
+     */
+    public DeadlineBackfillScheduler(int threads, FeedCheck feedCheck) {
+        this.feedCheck = feedCheck;
+        this.workers = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+        this.sweeper = new Thread(this::runSweeper, "hawkular-backfill-sweeper");
+        this.sweeper.setDaemon(true);
+        this.sweeper.start();
+    }
+
+    @Override
+    public boolean schedule(CacheKey key, long deadline) {
+        Deadline d = new Deadline(key, deadline, sequence.incrementAndGet());
+        if (null != deadlines.putIfAbsent(key, d)) {
+            return false;
+        }
+        addToIndex(d);
+        return true;
+    }
+
+    /**
+     * Push the deadline of the feed forward. Ignored if the feed is not scheduled or if its current deadline is
+     * already later.
+     */
+    @Override
+    public void ping(CacheKey key, long deadline) {
+        for (;;) {
+            Deadline current = deadlines.get(key);
+            if (null == current || current.time >= deadline) {
+                return;
+            }
+            Deadline next = new Deadline(key, deadline, sequence.incrementAndGet());
+            if (deadlines.replace(key, current, next)) {
+                // a later deadline can never become the earliest one, no need to wake up the sweeper
+                index.put(next, key);
+                index.remove(current);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean cancel(CacheKey key) {
+        Deadline d = deadlines.remove(key);
+        if (null == d) {
+            return false;
+        }
+        index.remove(d);
+        return true;
+    }
+
+    @Override
+    public boolean isScheduled(CacheKey key) {
+        return deadlines.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return deadlines.size();
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        sweeper.interrupt();
+        workers.shutdownNow();
+        deadlines.clear();
+        index.clear();
+    }
+
+    private void addToIndex(Deadline d) {
+        index.put(d, d.key);
+        Map.Entry<Deadline, CacheKey> first = index.firstEntry();
+        if (null != first && d == first.getKey()) {
+            // the sweeper may be sleeping until a later deadline
+            lock.lock();
+            try {
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void runSweeper() {
+        while (running) {
+            Deadline due;
+            lock.lock();
+            try {
+                Map.Entry<Deadline, CacheKey> first = index.firstEntry();
+                if (null == first) {
+                    available.await();
+                    continue;
+                }
+                long delayMs = first.getKey().time - System.currentTimeMillis();
+                if (delayMs > 0) {
+                    available.await(delayMs, TimeUnit.MILLISECONDS);
+                    continue;
+                }
+                due = first.getKey();
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                lock.unlock();
+            }
+
+            // only dispatch if the deadline was not pushed forward or cancelled in the meantime
+            if (null != index.remove(due) && deadlines.get(due.key) == due) {
+                dispatch(due);
+            }
+        }
+    }
+
+    private void dispatch(Deadline due) {
+        try {
+            workers.execute(() -> runCheck(due));
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            deadlines.remove(due.key, due);
+        }
+    }
+
+    private void runCheck(Deadline due) {
+        CacheKey key = due.key;
+        long nextDeadline;
+        try {
+            nextDeadline = feedCheck.check(key);
+        } catch (Exception e) {
+            log.errorf(e, "Failed BackfillCheck for %s, it will be checked again in %d ms", key, ERROR_RETRY_MS);
+            nextDeadline = System.currentTimeMillis() + ERROR_RETRY_MS;
+        }
+
+        if (nextDeadline < 0) {
+            deadlines.remove(key, due);
+            return;
+        }
+
+        // re-arm only if nobody cancelled the detector or pushed its deadline in the meantime
+        Deadline next = new Deadline(key, nextDeadline, sequence.incrementAndGet());
+        if (deadlines.replace(key, due, next)) {
+            addToIndex(next);
+        }
+    }
+
+    private static final class Deadline implements Comparable<Deadline> {
+        private final CacheKey key;
+        private final long time;
+        private final long seq;
+
+        Deadline(CacheKey key, long time, long seq) {
+            this.key = key;
+            this.time = time;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Deadline other) {
+            int result = Long.compare(time, other.time);
+            return 0 != result ? result : Long.compare(seq, other.seq);
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "hawkular-backfill-check-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
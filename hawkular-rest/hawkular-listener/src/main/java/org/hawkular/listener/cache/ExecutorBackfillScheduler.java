@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+import org.jboss.logging.Logger;
+
+/**
+ * {@link BackfillScheduler} running one periodic job per feed/tenant on a fixed size thread pool. Each job checks
+ * its feed every period, regardless of the feed's deadline.
+ *
+ * @author Jay Shaughnessy
+ * @author Joel Takvorian
+ */
+public class ExecutorBackfillScheduler implements BackfillScheduler {
+
+    private final Logger log = Logger.getLogger(ExecutorBackfillScheduler.class);
+
+    private final ScheduledExecutorService executorService;
+
+    private final Map<CacheKey, ScheduledFuture<?>> jobMap = new ConcurrentHashMap<>();
+
+    private final long periodMs;
+
+    private final FeedCheck feedCheck;
+
+    /**
+     * @param threads The number of threads devoted to backfill checking jobs
+     * @param periodMs The frequency of backfill checking
+     * @param feedCheck The check performed by every job
+     */
+    public ExecutorBackfillScheduler(int threads, long periodMs, FeedCheck feedCheck) {
+        // This is basically a fixed size pool, the size may need to be increased if there are a lot of
+        // active feeds.
+        this.executorService = Executors.newScheduledThreadPool(threads);
+        this.periodMs = periodMs;
+        this.feedCheck = feedCheck;
+    }
+
+    @Override
+    public boolean schedule(CacheKey key, long deadline) {
+        if (jobMap.containsKey(key)) {
+            return false;
+        }
+        BackfillCheckJob job = new BackfillCheckJob(key);
+        job.future = executorService.scheduleWithFixedDelay(job, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        if (null != jobMap.putIfAbsent(key, job.future)) {
+            // lost a race against a concurrent schedule of the same key
+            job.future.cancel(false);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean cancel(CacheKey key) {
+        ScheduledFuture<?> job = jobMap.remove(key);
+        if (null == job) {
+            return false;
+        }
+        job.cancel(false);
+        return true;
+    }
+
+    @Override
+    public boolean isScheduled(CacheKey key) {
+        return jobMap.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return jobMap.size();
+    }
+
+    @Override
+    public void shutdown() {
+        executorService.shutdownNow();
+        jobMap.clear();
+    }
+
+    private class BackfillCheckJob implements Runnable {
+
+        private final CacheKey key;
+        private volatile ScheduledFuture<?> future;
+
+        BackfillCheckJob(CacheKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (feedCheck.check(key) < 0 && null != future && jobMap.remove(key, future)) {
+                    future.cancel(false);
+                }
+            } catch (Exception e) {
+                // never let the exception escape, it would silently suppress any further execution
+                log.errorf(e, "Failed BackfillCheck job for %s", key);
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryExpired;
+import org.infinispan.notifications.cachelistener.event.CacheEntryExpiredEvent;
+import org.jboss.logging.Logger;
+
+/**
+ * <p>
+ * {@link BackfillScheduler} leaving the deadlines to the data grid. Each watched feed has an entry in a local cache
+ * whose lifespan ends at the feed's deadline, and every ping rewrites the entry with a new lifespan. The Infinispan
+ * expiration reaper is the only timer: when a feed stops pinging its entry expires, and the expiration event
+ * triggers the check. Dead entries are purged by the grid.</p>
+ * <p>
+ * The deadlines live in their own local cache, not in the backfill cache: backfill entries are replicated, so they
+ * would expire (and notify) on every member, and they are not rewritten by the pings coalesced by
+ * {@link BackfillCacheManager}. A feed is detected no later than one reaper interval past its deadline.</p>
+ * <p>
+ * The cache manager is the container's and outlives the deployment: the deadlines cache is removed on shutdown, and
+ * one left behind by a previous deployment is removed before being defined again.</p>
+ *
+ * @author Joel Takvorian
+ */
+public class ExpirationBackfillScheduler implements BackfillScheduler {
+
+    static final String CACHE_NAME = "backfill-deadlines";
+
+    private static final long ERROR_RETRY_MS = 1000L;
+
+    private final Logger log = Logger.getLogger(ExpirationBackfillScheduler.class);
+
+    private final EmbeddedCacheManager cacheManager;
+
+    private final Cache<CacheKey, Long> deadlines;
+
+    private final FeedCheck feedCheck;
+
+    private final ExecutorService workers;
+
+    private final ExpirationListener expirationListener = new ExpirationListener();
+
+    /**
+     * @param cacheManager The manager in which the local deadlines cache is defined
+     * @param threads The number of worker threads running the due checks
+     * @param reaperIntervalMs The interval of the expiration reaper, the precision of the deadlines
+     * @param feedCheck The check performed when a deadline comes due
+     */
+    public ExpirationBackfillScheduler(EmbeddedCacheManager cacheManager, int threads, long reaperIntervalMs,
+            FeedCheck feedCheck) {
+        this.cacheManager = cacheManager;
+        this.feedCheck = feedCheck;
+        this.workers = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+        if (cacheManager.cacheExists(CACHE_NAME)) {
+            log.debugf("Removing the %s cache left behind by a previous deployment", CACHE_NAME);
+            cacheManager.removeCache(CACHE_NAME);
+        }
+        cacheManager.defineConfiguration(CACHE_NAME, new ConfigurationBuilder()
+                .clustering().cacheMode(CacheMode.LOCAL)
+                .expiration().wakeUpInterval(reaperIntervalMs)
+                .build());
+        this.deadlines = cacheManager.getCache(CACHE_NAME);
+        this.deadlines.addListener(expirationListener);
+    }
+
+    @Override
+    public boolean schedule(CacheKey key, long deadline) {
+        return null == deadlines.putIfAbsent(key, deadline, lifespan(deadline), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Rewrite the entry of the feed with a later expiration. Ignored if the feed is not scheduled or if its current
+     * deadline is already later.
+     */
+    @Override
+    public void ping(CacheKey key, long deadline) {
+        Long current = deadlines.get(key);
+        if (null == current || current >= deadline) {
+            return;
+        }
+        // a concurrent ping already pushed the deadline if this fails
+        deadlines.replace(key, current, deadline, lifespan(deadline), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean cancel(CacheKey key) {
+        return null != deadlines.remove(key);
+    }
+
+    @Override
+    public boolean isScheduled(CacheKey key) {
+        return deadlines.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return deadlines.size();
+    }
+
+    @Override
+    public void shutdown() {
+        deadlines.removeListener(expirationListener);
+        workers.shutdownNow();
+        // removed rather than stopped, a stopped cache would be handed back as is to the next deployment
+        cacheManager.removeCache(CACHE_NAME);
+    }
+
+    private static long lifespan(long deadline) {
+        return Math.max(1L, deadline - System.currentTimeMillis());
+    }
+
+    private void runCheck(CacheKey key) {
+        long nextDeadline;
+        try {
+            nextDeadline = feedCheck.check(key);
+        } catch (Exception e) {
+            log.errorf(e, "Failed BackfillCheck for %s, it will be checked again in %d ms", key, ERROR_RETRY_MS);
+            nextDeadline = System.currentTimeMillis() + ERROR_RETRY_MS;
+        }
+
+        if (nextDeadline >= 0) {
+            // a ping may have re-armed the detector in the meantime
+            schedule(key, nextDeadline);
+        }
+    }
+
+    /**
+     * Expiration events are raised by the reaper thread, or by the thread reading an expired entry. The check is
+     * handed off to the workers so neither is held up.
+     */
+    @Listener
+    public class ExpirationListener {
+        @CacheEntryExpired
+        public void onExpired(CacheEntryExpiredEvent<CacheKey, Long> event) {
+            CacheKey key = event.getKey();
+            try {
+                workers.execute(() -> runCheck(key));
+            } catch (RejectedExecutionException e) {
+                // shutting down
+            }
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "hawkular-backfill-check-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
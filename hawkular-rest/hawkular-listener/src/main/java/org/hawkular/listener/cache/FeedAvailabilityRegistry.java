@@ -0,0 +1,207 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+import org.hawkular.metrics.core.service.MetricsService;
+import org.hawkular.metrics.model.AvailabilityType;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.MetricType;
+import org.jboss.logging.Logger;
+
+/**
+ * <p>
+ * The availability metrics reported by each watched feed/tenant, read from inventory ahead of time so that
+ * backfilling a dead feed is a single write, with no inventory read at the moment the feed dies.</p>
+ * <p>
+ * A feed/tenant is registered in the background by its first ping past a delay spread over the refresh period once
+ * its backfill detector is armed, and its registration is refreshed by the first ping after the refresh period. The
+ * feeds armed at once, e.g. on startup or when a topology change hands them over, are registered over a whole
+ * period instead of all reading their inventory at once. A registration is dropped when its feed is backfilled, so a
+ * feed restarting, with a possibly new inventory, is registered afresh.</p>
+ * <p>
+ * At most maxConcurrency registrations are read at once by the node. A stale registration is left stale while the
+ * others are read, its next ping tries again: the reads never queue up.</p>
+ * <p>
+ * There is no inventory change notification, the refresh polls the inventory. With the inventory cache a refresh of
+ * an unchanged inventory still costs two inventory metric queries (the metric types, then the resources of the
+ * feed) and one datapoint read per inventory metric of the feed: with N feed/tenants that is about 2N queries and
+ * as many datapoint reads per refresh period, whatever the rate of inventory changes. The period must then be long,
+ * an inventory change missed meanwhile only makes a backfill miss the avails of the new resources. The refreshes are
+ * spread over a quarter of the period, so that the feeds registered at once, e.g. on startup, do not refresh at
+ * once.</p>
+ *
+ * @author Joel Takvorian
+ */
+public class FeedAvailabilityRegistry {
+
+    private final Logger log = Logger.getLogger(FeedAvailabilityRegistry.class);
+
+    private final Map<CacheKey, Registration> registrations = new ConcurrentHashMap<>();
+
+    private final long refreshPeriodMs;
+
+    /**
+     * The registrations being read.
+     */
+    private final Semaphore refreshes;
+
+    /**
+     * @param refreshPeriodMs The age after which a registration is refreshed, give or take a quarter
+     * @param maxConcurrency The max number of registrations read at once
+     */
+    public FeedAvailabilityRegistry(long refreshPeriodMs, int maxConcurrency) {
+        this.refreshPeriodMs = refreshPeriodMs;
+        this.refreshes = new Semaphore(Math.max(1, maxConcurrency));
+    }
+
+    /**
+     * @return the availability metrics of the feed/tenant, or null if they are not known yet
+     */
+    public List<AvailabilityMetric> get(CacheKey key) {
+        Registration registration = registrations.get(key);
+        return (null == registration) ? null : registration.metrics;
+    }
+
+    /**
+     * Register the feed/tenant once past its initial delay, or refresh its registration if older than the refresh
+     * period. The inventory is read in the background, the call returns immediately. Cheap when the registration is
+     * not due, as on most pings.
+     *
+     * @param metricsService Supplies the metrics service, or null if it is not available yet
+     */
+    public void refreshIfStale(CacheKey key, long now, Supplier<MetricsService> metricsService) {
+        Registration registration = registrations.get(key);
+        if (null == registration) {
+            registration = registrations.computeIfAbsent(key, k -> new Registration(now + initialDelay(k)));
+        }
+        if (now < registration.dueTime || !registration.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        if (!refreshes.tryAcquire()) {
+            registration.refreshing.set(false);
+            log.tracef("Too many registrations being read, %s will be refreshed by a later ping", key);
+            return;
+        }
+
+        MetricsService service = metricsService.get();
+        if (null == service) {
+            registration.refreshing.set(false);
+            refreshes.release();
+            return;
+        }
+
+        Registration refreshed = registration;
+        InventoryHelper.listAvailabilityMetrics(service, key.getTenantId(), key.getFeedId())
+                .map(invMetric -> new AvailabilityMetric(
+                        new MetricId<>(key.getTenantId(), MetricType.AVAILABILITY, invMetric.getId()),
+                        BackfillCacheManager.isRemotelyMonitored(invMetric)))
+                .toList()
+                .doAfterTerminate(() -> {
+                    refreshed.refreshing.set(false);
+                    refreshes.release();
+                })
+                .subscribe(metrics -> {
+                    refreshed.metrics = Collections.unmodifiableList(metrics);
+                    refreshed.dueTime = now + refreshPeriodMs + spread(key);
+                    log.debugf("Registered %d availability metrics for %s", metrics.size(), key);
+                }, err -> {
+                    // keep the previous registration, if any, and retry with the next stale ping
+                    refreshed.dueTime = now + refreshPeriodMs + spread(key);
+                    log.warnf(err, "Failed to register the availability metrics of %s", key);
+                });
+    }
+
+    /**
+     * @return the delay of the first registration of the feed/tenant, up to the refresh period
+     */
+    private long initialDelay(CacheKey key) {
+        return Math.floorMod(mix(key), refreshPeriodMs + 1L);
+    }
+
+    /**
+     * @return the delay of the refresh of the feed/tenant past the refresh period, up to a quarter of the period
+     */
+    private long spread(CacheKey key) {
+        return Math.floorMod(mix(key), (refreshPeriodMs / 4L) + 1L);
+    }
+
+    /**
+     * @return the hash of the feed/tenant, mixed so that feeds of similar ids, e.g. numbered, are spread as well
+     */
+    private static long mix(CacheKey key) {
+        return key.hashCode() * 0x9E3779B97F4A7C15L;
+    }
+
+    /**
+     * Forget the feed/tenant, e.g. when this member no longer owns it.
+     */
+    public void remove(CacheKey key) {
+        registrations.remove(key);
+    }
+
+    /**
+     * @return the number of registered feed/tenants
+     */
+    public int size() {
+        return registrations.size();
+    }
+
+    private static final class Registration {
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile long dueTime;
+        private volatile List<AvailabilityMetric> metrics;
+
+        Registration(long dueTime) {
+            this.dueTime = dueTime;
+        }
+    }
+
+    /**
+     * An availability metric reported by a feed, and whether it is remotely monitored.
+     */
+    public static final class AvailabilityMetric {
+        private final MetricId<AvailabilityType> metricId;
+        private final boolean remote;
+
+        public AvailabilityMetric(MetricId<AvailabilityType> metricId, boolean remote) {
+            this.metricId = metricId;
+            this.remote = remote;
+        }
+
+        public MetricId<AvailabilityType> getMetricId() {
+            return metricId;
+        }
+
+        public boolean isRemote() {
+            return remote;
+        }
+
+        @Override
+        public String toString() {
+            return "AvailabilityMetric [metricId=" + metricId + ", remote=" + remote + "]";
+        }
+    }
+}
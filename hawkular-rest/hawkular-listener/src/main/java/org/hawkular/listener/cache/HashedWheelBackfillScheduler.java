@@ -0,0 +1,315 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+import org.jboss.logging.Logger;
+
+/**
+ * <p>
+ * {@link BackfillScheduler} based on a hashed timing wheel. A single ticker thread owns the deadlines of all the
+ * watched feeds, so the scheduling overhead does not depend on the number of feeds. Inserting or cancelling a
+ * deadline is O(1). Due checks are handed off to a small pool of worker threads so that a slow check never delays
+ * the ticker.</p>
+ * <p>
+ * A feed is checked only when its deadline comes due, not periodically. The check returns the next deadline
+ * (typically the last ping time plus the max quiet period) and the feed is re-inserted in the wheel accordingly.</p>
+ *
+ * @author Joel Takvorian
+ */
+public class HashedWheelBackfillScheduler implements BackfillScheduler {
+
+    private static final int ST_PENDING = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private final Logger log = Logger.getLogger(HashedWheelBackfillScheduler.class);
+
+    private final Map<CacheKey, Timeout> timeouts = new ConcurrentHashMap<>();
+
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+
+    private final Bucket[] wheel;
+
+    private final int mask;
+
+    private final long tickMs;
+
+    private final FeedCheck feedCheck;
+
+    private final ExecutorService workers;
+
+    private final Thread ticker;
+
+    private final long startTime;
+
+    private volatile boolean running = true;
+
+    // only accessed by the ticker thread
+    private long tick;
+
+    /**
+     * @param threads The number of worker threads running the due checks
+     * @param tickMs The duration of a wheel tick, the precision of the deadlines
+     * @param wheelSize The number of buckets in the wheel, rounded up to a power of two
+     * @param feedCheck The check performed when a deadline comes due
+     */
+    public HashedWheelBackfillScheduler(int threads, long tickMs, int wheelSize, FeedCheck feedCheck) {
+        if (tickMs <= 0) {
+            throw new IllegalArgumentException("tickMs must be greater than 0: " + tickMs);
+        }
+        if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("wheelSize must be in (0, 2^30]: " + wheelSize);
+        }
+        int normalizedSize = 1;
+        while (normalizedSize < wheelSize) {
+            normalizedSize <<= 1;
+        }
+        this.wheel = new Bucket[normalizedSize];
+        for (int i = 0; i < normalizedSize; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = normalizedSize - 1;
+        this.tickMs = tickMs;
+        this.feedCheck = feedCheck;
+        this.workers = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+        this.startTime = System.currentTimeMillis();
+        this.ticker = new Thread(this::runTicker, "hawkular-backfill-ticker");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    @Override
+    public boolean schedule(CacheKey key, long deadline) {
+        Timeout timeout = new Timeout(key, deadline);
+        if (null != timeouts.putIfAbsent(key, timeout)) {
+            return false;
+        }
+        pendingTimeouts.add(timeout);
+        return true;
+    }
+
+    @Override
+    public boolean cancel(CacheKey key) {
+        Timeout timeout = timeouts.remove(key);
+        if (null == timeout) {
+            return false;
+        }
+        if (timeout.state.compareAndSet(ST_PENDING, ST_CANCELLED)) {
+            cancelledTimeouts.add(timeout);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isScheduled(CacheKey key) {
+        return timeouts.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return timeouts.size();
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        ticker.interrupt();
+        workers.shutdownNow();
+        timeouts.clear();
+    }
+
+    private void runTicker() {
+        while (running) {
+            if (!waitForNextTick()) {
+                break;
+            }
+            removeCancelledTimeouts();
+            transferPendingTimeouts();
+            wheel[(int) (tick & mask)].expireTimeouts();
+            tick++;
+        }
+    }
+
+    /**
+     * @return false if the ticker was interrupted while waiting, i.e. the scheduler is shutting down
+     */
+    private boolean waitForNextTick() {
+        long nextTickTime = startTime + (tick + 1) * tickMs;
+        for (;;) {
+            long sleepMs = nextTickTime - System.currentTimeMillis();
+            if (sleepMs <= 0) {
+                return true;
+            }
+            try {
+                Thread.sleep(sleepMs);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+    }
+
+    private void removeCancelledTimeouts() {
+        for (Timeout timeout = cancelledTimeouts.poll(); null != timeout; timeout = cancelledTimeouts.poll()) {
+            if (null != timeout.bucket) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferPendingTimeouts() {
+        for (Timeout timeout = pendingTimeouts.poll(); null != timeout; timeout = pendingTimeouts.poll()) {
+            if (ST_PENDING != timeout.state.get()) {
+                continue;
+            }
+            long deadlineTick = Math.max(0L, (timeout.deadline - startTime) / tickMs);
+            // deadlines already in the past expire on the current tick
+            long ticks = Math.max(deadlineTick, tick);
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void dispatch(Timeout timeout) {
+        try {
+            workers.execute(() -> runCheck(timeout));
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            timeouts.remove(timeout.key, timeout);
+        }
+    }
+
+    private void runCheck(Timeout timeout) {
+        CacheKey key = timeout.key;
+        long nextDeadline;
+        try {
+            nextDeadline = feedCheck.check(key);
+        } catch (Exception e) {
+            log.errorf(e, "Failed BackfillCheck for %s, it will be checked again in %d ms", key, tickMs);
+            nextDeadline = System.currentTimeMillis() + tickMs;
+        }
+
+        if (nextDeadline < 0) {
+            timeouts.remove(key, timeout);
+            return;
+        }
+
+        // re-arm only if nobody cancelled or replaced the detector in the meantime
+        Timeout next = new Timeout(key, nextDeadline);
+        if (timeouts.replace(key, timeout, next)) {
+            pendingTimeouts.add(next);
+        }
+    }
+
+    private static final class Timeout {
+        private final CacheKey key;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(ST_PENDING);
+
+        // only accessed by the ticker thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        Timeout(CacheKey key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Doubly linked list of timeouts, only accessed by the ticker thread.
+     */
+    private final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (null == head) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (null != timeout.prev) {
+                timeout.prev.next = next;
+            }
+            if (null != timeout.next) {
+                timeout.next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                if (timeout == tail) {
+                    head = tail = null;
+                } else {
+                    head = next;
+                }
+            } else if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+
+        void expireTimeouts() {
+            Timeout timeout = head;
+            while (null != timeout) {
+                if (timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                    timeout = timeout.next;
+                    continue;
+                }
+                Timeout next = remove(timeout);
+                if (timeout.state.compareAndSet(ST_PENDING, ST_EXPIRED)) {
+                    dispatch(timeout);
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "hawkular-backfill-check-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -16,27 +16,36 @@
  */
 package org.hawkular.listener.cache;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
 import java.util.Base64;
-import java.util.Base64.Decoder;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 
+import org.hawkular.inventory.api.model.Entity;
 import org.hawkular.inventory.api.model.ExtendedInventoryStructure;
 import org.hawkular.inventory.api.model.Metric;
+import org.hawkular.inventory.api.model.MetricDataType;
 import org.hawkular.inventory.api.model.MetricType;
 import org.hawkular.inventory.json.InventoryJacksonConfig;
-import org.hawkular.inventory.paths.RelativePath;
 import org.hawkular.listener.exception.InvalidInventoryChunksException;
 import org.hawkular.metrics.core.service.MetricsService;
 import org.hawkular.metrics.core.service.Order;
 import org.hawkular.metrics.model.DataPoint;
+import org.hawkular.metrics.model.MetricId;
 import org.hawkular.metrics.model.Tenant;
 import org.jboss.logging.Logger;
 
@@ -44,20 +53,158 @@ import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 
 import rx.Observable;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
 
 /**
- * Helper methods to read inventory data as produced by the agents
+ * Helper methods to read inventory data as produced by the agents. The latest reassembled inventory of each
+ * inventory metric is cached, see hawkular-services.backfill.inventory-cache-bytes in {@link BackfillCacheManager}.
+ * The inventories are read with a bounded concurrency, shared by all the reads of the node, and are inflated and
+ * parsed on a dedicated scheduler, see hawkular-services.backfill.inventory-max-concurrency and
+ * inventory-parse-threads. The compressed size of an inventory and of all the inventories being reassembled at once
+ * are bounded, see hawkular-services.backfill.inventory-max-bytes and inventory-budget-bytes, as well as the inflated
+ * size of an inventory, see inventory-max-inflated-bytes.
  * @author Joel Takvorian
  */
 public final class InventoryHelper {
 
     private static final Logger LOG = Logger.getLogger(InventoryHelper.class);
     private static final ObjectMapper MAPPER = new ObjectMapper(new JsonFactory());
+    private static final int GZIP_BUFFER_SIZE = 8192;
+
+    private static final String DEFAULT_INVENTORY_CACHE_BYTES = "67108864";
+    private static final String PROP_INVENTORY_CACHE_BYTES = "hawkular-services.backfill.inventory-cache-bytes";
+    private static final long INVENTORY_CACHE_BYTES;
+
+    private static final String DEFAULT_INVENTORY_MAX_CONCURRENCY = "8";
+    private static final String PROP_INVENTORY_MAX_CONCURRENCY = "hawkular-services.backfill.inventory-max-concurrency";
+    private static final int INVENTORY_MAX_CONCURRENCY;
+
+    private static final String DEFAULT_INVENTORY_PARSE_THREADS = "2";
+    private static final String PROP_INVENTORY_PARSE_THREADS = "hawkular-services.backfill.inventory-parse-threads";
+    private static final int INVENTORY_PARSE_THREADS;
+
+    private static final String DEFAULT_INVENTORY_MAX_BYTES = "33554432";
+    private static final String PROP_INVENTORY_MAX_BYTES = "hawkular-services.backfill.inventory-max-bytes";
+    private static final long INVENTORY_MAX_BYTES;
+
+    private static final String DEFAULT_INVENTORY_MAX_INFLATED_BYTES = "268435456";
+    private static final String PROP_INVENTORY_MAX_INFLATED_BYTES =
+            "hawkular-services.backfill.inventory-max-inflated-bytes";
+    private static final long INVENTORY_MAX_INFLATED_BYTES;
+
+    private static final String DEFAULT_INVENTORY_BUDGET_BYTES = "134217728";
+    private static final String PROP_INVENTORY_BUDGET_BYTES = "hawkular-services.backfill.inventory-budget-bytes";
+
+    /**
+     * The inventories being fetched at once, by all the reads of the node. A fetch waits for a permit before reading
+     * its master datapoint, and holds it until reassembled.
+     */
+    private static final ByteBudget READ_PERMITS;
+
+    /**
+     * The compressed bytes of the inventories being fetched and reassembled. A fetch waits for its share before
+     * reading the chunks.
+     */
+    private static final ByteBudget REASSEMBLY_BUDGET;
+
+    /**
+     * The reassembled inventories waiting for a parse thread, per fetch. The fetch is not requested more data
+     * until they are parsed.
+     */
+    private static final int PARSE_BUFFER_SIZE = 1;
+
+    /**
+     * Inflates and parses the inventories, off the threads of the metrics driver. Started on first use, see
+     * {@link #parseScheduler()}, and stopped by {@link #shutdown()}.
+     */
+    private static volatile Scheduler parseScheduler;
+
+    /**
+     * The threads of the parse scheduler, null when not started or parsing on the driver threads.
+     */
+    private static ExecutorService parseExecutor;
+
+    /**
+     * The latest reassembled inventory of each inventory metric, bounded by the size of their JSON.
+     */
+    private static final Cache<MetricId<String>, CachedInventory> INVENTORY_CACHE;
 
     static {
         InventoryJacksonConfig.configure(MAPPER);
+
+        long inventoryCacheBytes;
+        try {
+            inventoryCacheBytes = Long
+                    .valueOf(System.getProperty(PROP_INVENTORY_CACHE_BYTES, DEFAULT_INVENTORY_CACHE_BYTES))
+                    .longValue();
+        } catch (Exception e) {
+            inventoryCacheBytes = 67108864L;
+        }
+        INVENTORY_CACHE_BYTES = inventoryCacheBytes;
+
+        int inventoryMaxConcurrency;
+        try {
+            inventoryMaxConcurrency = Integer
+                    .valueOf(System.getProperty(PROP_INVENTORY_MAX_CONCURRENCY, DEFAULT_INVENTORY_MAX_CONCURRENCY))
+                    .intValue();
+        } catch (Exception e) {
+            inventoryMaxConcurrency = 8;
+        }
+        INVENTORY_MAX_CONCURRENCY = Math.max(1, inventoryMaxConcurrency);
+        READ_PERMITS = new ByteBudget(INVENTORY_MAX_CONCURRENCY);
+
+        int inventoryParseThreads;
+        try {
+            inventoryParseThreads = Integer
+                    .valueOf(System.getProperty(PROP_INVENTORY_PARSE_THREADS, DEFAULT_INVENTORY_PARSE_THREADS))
+                    .intValue();
+        } catch (Exception e) {
+            inventoryParseThreads = 2;
+        }
+        INVENTORY_PARSE_THREADS = inventoryParseThreads;
+
+        long inventoryMaxBytes;
+        try {
+            inventoryMaxBytes = Long
+                    .valueOf(System.getProperty(PROP_INVENTORY_MAX_BYTES, DEFAULT_INVENTORY_MAX_BYTES))
+                    .longValue();
+        } catch (Exception e) {
+            inventoryMaxBytes = 33554432L;
+        }
+        INVENTORY_MAX_BYTES = inventoryMaxBytes;
+
+        long inventoryMaxInflatedBytes;
+        try {
+            inventoryMaxInflatedBytes = Long
+                    .valueOf(System.getProperty(PROP_INVENTORY_MAX_INFLATED_BYTES,
+                            DEFAULT_INVENTORY_MAX_INFLATED_BYTES))
+                    .longValue();
+        } catch (Exception e) {
+            inventoryMaxInflatedBytes = 268435456L;
+        }
+        INVENTORY_MAX_INFLATED_BYTES = inventoryMaxInflatedBytes;
+
+        long inventoryBudgetBytes;
+        try {
+            inventoryBudgetBytes = Long
+                    .valueOf(System.getProperty(PROP_INVENTORY_BUDGET_BYTES, DEFAULT_INVENTORY_BUDGET_BYTES))
+                    .longValue();
+        } catch (Exception e) {
+            inventoryBudgetBytes = 134217728L;
+        }
+        REASSEMBLY_BUDGET = new ByteBudget(Math.max(inventoryBudgetBytes, 1L));
+
+        INVENTORY_CACHE = CacheBuilder.newBuilder()
+                .maximumWeight(INVENTORY_CACHE_BYTES)
+                .weigher((MetricId<String> metricId, CachedInventory cached) -> cached.weight)
+                .recordStats()
+                .build();
     }
 
     private InventoryHelper() {
@@ -72,7 +219,7 @@ public final class InventoryHelper {
                         tenant.getId(),
                         org.hawkular.metrics.model.MetricType.STRING,
                         "module:inventory,feed:" + feedId)
-                        .isEmpty().filter(isEmpty -> !isEmpty).map(any -> tenant));
+                        .isEmpty().filter(isEmpty -> !isEmpty).map(any -> tenant), INVENTORY_MAX_CONCURRENCY);
     }
 
     /**
@@ -94,21 +241,12 @@ public final class InventoryHelper {
         String tags = "module:inventory,feed:" + feedId + ",type:mt";
         return metricsService.findMetricsWithFilters(tenantId, org.hawkular.metrics.model.MetricType.STRING, tags)
                 .flatMap(metric -> {
-                    return metricsService.findStringData(metric.getMetricId(), 0, currentTime,
-                            false, 0, Order.DESC)
-                            .toList()
-                            .map(dataPoints -> {
-                                try {
-                                    return rebuildFromChunks(dataPoints);
-                                } catch (InvalidInventoryChunksException e) {
-                                    e.addContext("metricId", metric.getId());
-                                    throw Throwables.propagate(e);
-                                }
-                            })
-                            .map(inv -> inv.getStructure().get(RelativePath.fromString("")))
+                    return fetchLatestInventory(metricsService, metric.getMetricId(), currentTime,
+                            e -> e.addContext("metricId", metric.getId()))
+                            .map(inv -> getRoot(inv))
                             .filter(bp -> bp instanceof MetricType.Blueprint)
                             .map(bp -> (MetricType.Blueprint) bp);
-                });
+                }, INVENTORY_MAX_CONCURRENCY);
     }
 
     /**
@@ -133,46 +271,283 @@ public final class InventoryHelper {
         String tags = "module:inventory,feed:" + feedId + ",type:r,mtypes:.*" + escapedForRegex + ".*";
         return metricsService.findMetricsWithFilters(tenantId, org.hawkular.metrics.model.MetricType.STRING, tags)
                 .flatMap(metric -> {
-                    return metricsService.findStringData(metric.getMetricId(), 0, currentTime,
-                            false, 0, Order.DESC)
-                            .toList()
-                            .map(dataPoints -> {
-                                try {
-                                    return rebuildFromChunks(dataPoints);
-                                } catch (InvalidInventoryChunksException e) {
-                                    e.addContext("metricType", metricType.getId());
-                                    e.addContext("metricId", metric.getId());
-                                    throw Throwables.propagate(e);
-                                }
+                    return fetchLatestInventory(metricsService, metric.getMetricId(), currentTime,
+                            e -> {
+                                e.addContext("metricType", metricType.getId());
+                                e.addContext("metricId", metric.getId());
                             })
                             .map(inv -> extractMetricsForType(inv, metricType.getId()))
                             .flatMap(Observable::from);
+                }, INVENTORY_MAX_CONCURRENCY);
+    }
+
+    /**
+     * Get the metrics for given tenant and feed, grouped by the id of their metric type, for all the given metric
+     * types at once. Unlike one {@link #listMetricsForType(MetricsService, String, String, MetricType.Blueprint)}
+     * per metric type, the resource inventories of the feed are listed and parsed once, whatever the number of
+     * metric types, and without any regex tag filter.
+     *
+     * @return a single map holding an entry, possibly empty, for each of the given metric types
+     */
+    static Observable<Map<String, List<Metric.Blueprint>>> listMetricsByType(MetricsService metricsService,
+                                                                           String tenantId,
+                                                                           String feedId,
+                                                                           Collection<MetricType.Blueprint> metricTypes,
+                                                                           long currentTime) {
+        Map<String, List<Metric.Blueprint>> empty = new LinkedHashMap<>();
+        metricTypes.forEach(mt -> empty.put(mt.getId(), Collections.emptyList()));
+        if (empty.isEmpty()) {
+            return Observable.just(empty);
+        }
+        String tags = "module:inventory,feed:" + feedId + ",type:r";
+        return metricsService.findMetricsWithFilters(tenantId, org.hawkular.metrics.model.MetricType.STRING, tags)
+                .flatMap(metric -> fetchLatestInventory(metricsService, metric.getMetricId(), currentTime,
+                        e -> e.addContext("metricId", metric.getId())), INVENTORY_MAX_CONCURRENCY)
+                .collect(() -> {
+                    Map<String, List<Metric.Blueprint>> byType = new LinkedHashMap<>();
+                    empty.keySet().forEach(typeId -> byType.put(typeId, new ArrayList<>()));
+                    return byType;
+                }, (byType, inv) -> {
+                    // materialize the metrics of all the types in one pass over the inventory
+                    extractMetricsByType(inv, byType.keySet())
+                            .forEach((typeId, metrics) -> byType.get(typeId).addAll(metrics));
+                });
+    }
+
+    /**
+     * Get the availability metrics for given tenant and feed, with a single scan of its resource inventories.
+     */
+    static Observable<Metric.Blueprint> listAvailabilityMetrics(MetricsService metricsService,
+                                                               String tenantId,
+                                                               String feedId) {
+        long currentTime = System.currentTimeMillis();
+        return listMetricTypes(metricsService, tenantId, feedId, currentTime)
+                .filter(mt -> MetricDataType.AVAILABILITY == mt.getMetricDataType())
+                .toList()
+                .flatMap(availTypes -> listMetricsByType(metricsService, tenantId, feedId, availTypes, currentTime))
+                .flatMapIterable(byType -> byType.values())
+                .flatMapIterable(metrics -> metrics);
+    }
+
+    /**
+     * Fetch the latest inventory stored in a metric. Only its master datapoint is read first: when it is the one
+     * of the cached inventory of the metric, the cached inventory is returned, otherwise only its followers are
+     * read. The older inventories of the metric are never read. The reassembly runs on the parse scheduler.
+     * <p>
+     * The followers are only read once the compressed size of the inventory, declared by its master, fits in the
+     * reassembly budget. An inventory declared larger than the max size fails right away.</p>
+     * <p>
+     * The fetch waits for one of the read permits shared by all the reads of the node, and holds it until done: at
+     * most inventory-max-concurrency inventories are fetched at once, whatever the number of feeds being read.</p>
+     *
+     * @param context Adds context to a reassembly failure
+     */
+    private static Observable<LazyInventory> fetchLatestInventory(
+            MetricsService metricsService,
+            MetricId<String> metricId,
+            long currentTime,
+            Consumer<InvalidInventoryChunksException> context) {
+        return reserve(READ_PERMITS, 1L).flatMap(permit -> Observable.using(() -> permit,
+                p -> fetchLatestInventoryPermitted(metricsService, metricId, currentTime, context),
+                READ_PERMITS::release));
+    }
+
+    private static Observable<LazyInventory> fetchLatestInventoryPermitted(
+            MetricsService metricsService,
+            MetricId<String> metricId,
+            long currentTime,
+            Consumer<InvalidInventoryChunksException> context) {
+        return metricsService.findStringData(metricId, 0, currentTime, false, 1, Order.DESC)
+                .toList()
+                .flatMap(masters -> {
+                    if (!masters.isEmpty()) {
+                        CachedInventory cached = INVENTORY_CACHE.getIfPresent(metricId);
+                        if (null != cached && cached.masterTime == masters.get(0).getTimestamp()) {
+                            return Observable.just(cached.inventory);
+                        }
+                    }
+                    long compressedBytes;
+                    try {
+                        compressedBytes = declaredCompressedBytes(masters);
+                    } catch (InvalidInventoryChunksException e) {
+                        context.accept(e);
+                        throw Throwables.propagate(e);
+                    }
+                    return reserve(REASSEMBLY_BUDGET, compressedBytes).flatMap(granted -> Observable.using(
+                            () -> granted,
+                            g -> fetchChunks(metricsService, metricId, masters)
+                                    .observeOn(parseScheduler(), PARSE_BUFFER_SIZE)
+                                    .map(dataPoints -> {
+                                        try {
+                                            CachedInventory reassembled = reassemble(dataPoints);
+                                            // replaces the inventory of an older master, if any
+                                            INVENTORY_CACHE.put(metricId, reassembled);
+                                            return reassembled.inventory;
+                                        } catch (InvalidInventoryChunksException e) {
+                                            context.accept(e);
+                                            throw Throwables.propagate(e);
+                                        }
+                                    }),
+                            REASSEMBLY_BUDGET::release));
                 });
     }
 
-    private static List<Metric.Blueprint> extractMetricsForType(ExtendedInventoryStructure inv, String metricTypeId) {
-        return inv.getMetricTypesIndex().getOrDefault(metricTypeId, Collections.emptyList()).stream()
-                .map(relPath -> inv.getStructure().get(RelativePath.fromString(relPath)))
-                .filter(bp -> bp instanceof Metric.Blueprint)
-                .map(bp -> (Metric.Blueprint)bp)
-                .collect(Collectors.toList());
+    /**
+     * @return the granted bytes of the budget, once available
+     */
+    private static Observable<Long> reserve(ByteBudget budget, long bytes) {
+        return Observable.create(subscriber -> budget.reserve(bytes, granted -> {
+            if (subscriber.isUnsubscribed()) {
+                budget.release(granted);
+                return;
+            }
+            subscriber.onNext(granted);
+            subscriber.onCompleted();
+        }));
+    }
+
+    /**
+     * @return the compressed size of the inventory as declared by its master datapoint, if any, before its followers
+     * are read
+     * @throws InvalidInventoryChunksException if the declared size is invalid or larger than the max
+     */
+    private static long declaredCompressedBytes(List<DataPoint<String>> masters)
+            throws InvalidInventoryChunksException {
+        if (masters.isEmpty()) {
+            return 0L;
+        }
+        DataPoint<String> masterNode = masters.get(0);
+        String size = masterNode.getTags().get("size");
+        long bytes;
+        if (null != size) {
+            try {
+                bytes = Long.parseLong(size);
+            } catch (NumberFormatException e) {
+                bytes = -1L;
+            }
+            if (bytes < 0L) {
+                throw new InvalidInventoryChunksException("Inventory sanity check failure: invalid size " + size);
+            }
+        } else {
+            bytes = base64DecodedBytes(masterNode);
+        }
+        checkMaxBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the given master datapoint followed by its followers, if chunked
+     */
+    private static Observable<List<DataPoint<String>>> fetchChunks(MetricsService metricsService,
+                                                                 MetricId<String> metricId,
+                                                                 List<DataPoint<String>> masters) {
+        if (masters.isEmpty()) {
+            return Observable.just(masters);
+        }
+        DataPoint<String> masterNode = masters.get(0);
+        String chunks = masterNode.getTags().get("chunks");
+        int nbChunks = (null == chunks) ? 1 : Integer.parseInt(chunks);
+        if (nbChunks <= 1) {
+            return Observable.just(masters);
+        }
+        // followers are stored at contiguous timestamps right before the master, end is exclusive
+        long masterTime = masterNode.getTimestamp();
+        return metricsService.findStringData(metricId, masterTime - nbChunks + 1, masterTime, false,
+                nbChunks - 1, Order.DESC)
+                .startWith(masterNode)
+                .toList();
+    }
 
+    /**
+     * @return the hit, miss and eviction statistics of the reassembled inventories cache
+     */
+    static CacheStats getInventoryCacheStats() {
+        return INVENTORY_CACHE.stats();
     }
 
+    @VisibleForTesting
+    static void invalidateInventoryCache() {
+        INVENTORY_CACHE.invalidateAll();
+    }
+
+    @VisibleForTesting
+    static void parseOn(Scheduler scheduler) {
+        parseScheduler = scheduler;
+    }
+
+    private static Scheduler parseScheduler() {
+        Scheduler result = parseScheduler;
+        return (null != result) ? result : startParseScheduler();
+    }
+
+    private static synchronized Scheduler startParseScheduler() {
+        if (null == parseScheduler) {
+            if (INVENTORY_PARSE_THREADS > 0) {
+                parseExecutor = Executors.newFixedThreadPool(INVENTORY_PARSE_THREADS, new ParseThreadFactory());
+                parseScheduler = Schedulers.from(parseExecutor);
+            } else {
+                parseScheduler = Schedulers.immediate();
+            }
+        }
+        return parseScheduler;
+    }
+
+    /**
+     * Stop the parse threads, so that an undeployment does not leak them along with their class loader. They are
+     * started again if needed.
+     */
+    static synchronized void shutdown() {
+        if (null != parseExecutor) {
+            parseExecutor.shutdownNow();
+            parseExecutor = null;
+            parseScheduler = null;
+        }
+    }
+
+    private static Entity.Blueprint getRoot(LazyInventory inv) {
+        return inv.getRoot();
+    }
+
+    private static List<Metric.Blueprint> extractMetricsForType(LazyInventory inv, String metricTypeId) {
+        return extractMetricsByType(inv, Collections.singleton(metricTypeId)).get(metricTypeId);
+    }
+
+    /**
+     * Only the metrics referenced by the metric types index are materialized, not the rest of the structure.
+     *
+     * @return the metrics of each of the metric types, keyed by metric type id
+     */
+    private static Map<String, List<Metric.Blueprint>> extractMetricsByType(LazyInventory inv,
+                                                                            Collection<String> metricTypeIds) {
+        return inv.getMetricsByType(metricTypeIds);
+    }
+
+    /**
+     * Reassemble an inventory from its datapoints, newest first. The chunks are streamed, base64 decoded, inflated
+     * and parsed on the fly: neither the compressed bytes nor the JSON are ever held in full.
+     */
     @VisibleForTesting
     static ExtendedInventoryStructure rebuildFromChunks(List<DataPoint<String>> datapoints)
             throws InvalidInventoryChunksException {
+        return reassemble(datapoints, json -> MAPPER.readValue(json, ExtendedInventoryStructure.class));
+    }
+
+    private static CachedInventory reassemble(List<DataPoint<String>> datapoints)
+            throws InvalidInventoryChunksException {
+        return reassemble(datapoints, json -> new CachedInventory(datapoints.get(0).getTimestamp(),
+                LazyInventory.read(MAPPER, json)));
+    }
+
+    private static <T> T reassemble(List<DataPoint<String>> datapoints, JsonReader<T> reader)
+            throws InvalidInventoryChunksException {
         if (datapoints.isEmpty()) {
             throw new InvalidInventoryChunksException("Missing inventory: no datapoint found. Did they expire?");
         }
         DataPoint<String> masterNode = datapoints.get(0);
-        Decoder decoder = Base64.getDecoder();
-        final byte[] all;
+        final InputStream all;
         if (masterNode.getTags().containsKey("chunks")) {
             int nbChunks = Integer.parseInt(masterNode.getTags().get("chunks"));
-            int totalSize = Integer.parseInt(masterNode.getTags().get("size"));
-            byte[] master = decoder.decode(masterNode.getValue().getBytes());
-            if (master.length == 0) {
+            if (masterNode.getValue().isEmpty()) {
                 throw new InvalidInventoryChunksException("Missing inventory: master datapoint exists but is empty");
             }
             if (nbChunks > datapoints.size()) {
@@ -180,10 +555,9 @@ public final class InventoryHelper {
                 throw new InvalidInventoryChunksException("Inventory sanity check failure: " + nbChunks
                         + " chunks expected, only " + datapoints.size() + " are available");
             }
-            all = new byte[totalSize];
-            int pos = 0;
-            System.arraycopy(master, 0, all, pos, master.length);
-            pos += master.length;
+            List<InputStream> chunks = new ArrayList<>(nbChunks);
+            long compressedBytes = base64DecodedBytes(masterNode);
+            chunks.add(decode(masterNode));
             for (int i = 1; i < nbChunks; i++) {
                 DataPoint<String> slaveNode = datapoints.get(i);
                 // Perform sanity check using timestamps; they should all be contiguous, in decreasing order
@@ -192,33 +566,177 @@ public final class InventoryHelper {
                             + " timestamp is " + slaveNode.getTimestamp() + ", expecting "
                             + (masterNode.getTimestamp() - i));
                 }
-                byte[] slave = decoder.decode(slaveNode.getValue().getBytes());
-                System.arraycopy(slave, 0, all, pos, slave.length);
-                pos += slave.length;
+                compressedBytes += base64DecodedBytes(slaveNode);
+                chunks.add(decode(slaveNode));
             }
+            // do not trust the declared size
+            checkMaxBytes(compressedBytes);
+            all = new SequenceInputStream(Collections.enumeration(chunks));
         } else {
             // Not chunked
-            all = decoder.decode(masterNode.getValue().getBytes());
+            checkMaxBytes(base64DecodedBytes(masterNode));
+            all = decode(masterNode);
         }
-        try {
-            String decompressed = decompress(all);
-            return MAPPER.readValue(decompressed, ExtendedInventoryStructure.class);
+        try (LimitedInputStream json = new LimitedInputStream(new GZIPInputStream(all, GZIP_BUFFER_SIZE),
+                INVENTORY_MAX_INFLATED_BYTES)) {
+            try {
+                return reader.read(json);
+            } catch (IOException e) {
+                if (!json.isExceeded()) {
+                    throw e;
+                }
+                // a compression bomb, or a huge inventory, must not fill the heap
+                throw new InvalidInventoryChunksException("Inventory too large: more than "
+                        + INVENTORY_MAX_INFLATED_BYTES + " inflated bytes, the max");
+            }
         } catch (IOException e) {
             throw new InvalidInventoryChunksException("Could not read assembled chunks", e);
         }
     }
 
-    private static String decompress(byte[] gzipped) throws IOException {
-        if ((gzipped == null) || (gzipped.length == 0)) {
-            return "";
+    private static void checkMaxBytes(long compressedBytes) throws InvalidInventoryChunksException {
+        if (compressedBytes > INVENTORY_MAX_BYTES) {
+            throw new InvalidInventoryChunksException("Inventory too large: " + compressedBytes
+                    + " compressed bytes, the max is " + INVENTORY_MAX_BYTES);
+        }
+    }
+
+    private static long base64DecodedBytes(DataPoint<String> chunk) {
+        return (chunk.getValue().length() / 4L) * 3L;
+    }
+
+    /**
+     * An inventory with the timestamp of its master datapoint. Weighs the estimated heap held by the inventory, not
+     * the size of its JSON: only its metrics and root are kept.
+     */
+    private static final class CachedInventory {
+        private final long masterTime;
+        private final LazyInventory inventory;
+        private final int weight;
+
+        CachedInventory(long masterTime, LazyInventory inventory) {
+            this.masterTime = masterTime;
+            this.inventory = inventory;
+            this.weight = (int) Math.min(Integer.MAX_VALUE, inventory.getRetainedBytes());
         }
-        StringBuilder outStr = new StringBuilder();
-        GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(gzipped));
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(gis, "UTF-8"));
-        String line;
-        while ((line = bufferedReader.readLine()) != null) {
-            outStr.append(line);
+    }
+
+    /**
+     * Reads an inventory from its inflated JSON.
+     */
+    @FunctionalInterface
+    private interface JsonReader<T> {
+        T read(LimitedInputStream json) throws IOException;
+    }
+
+    /**
+     * Counts the bytes read, failing the read past the given limit.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+        private long count;
+        private boolean exceeded;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        boolean isExceeded() {
+            return exceeded;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void count(long n) throws IOException {
+            count += n;
+            if (count > limit) {
+                exceeded = true;
+                throw new IOException("Read more than " + limit + " bytes");
+            }
+        }
+    }
+
+    private static final class ParseThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "hawkular-backfill-inventory-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * Each chunk is base64 encoded on its own, possibly padded, so each is decoded separately.
+     */
+    private static InputStream decode(DataPoint<String> chunk) {
+        return Base64.getDecoder().wrap(new AsciiInputStream(chunk.getValue()));
+    }
+
+    /**
+     * Reads the chars of a base64 string as bytes, without copying the string.
+     */
+    private static final class AsciiInputStream extends InputStream {
+        private final String value;
+        private int pos;
+
+        AsciiInputStream(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public int read() {
+            return (pos < value.length()) ? (value.charAt(pos++) & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            int n = Math.min(len, value.length() - pos);
+            if (n <= 0) {
+                return -1;
+            }
+            for (int i = 0; i < n; i++) {
+                b[off + i] = (byte) value.charAt(pos++);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return value.length() - pos;
         }
-        return outStr.toString();
     }
 }
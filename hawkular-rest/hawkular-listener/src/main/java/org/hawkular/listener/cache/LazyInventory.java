@@ -0,0 +1,486 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.hawkular.inventory.api.model.Entity;
+import org.hawkular.inventory.api.model.ExtendedInventoryStructure;
+import org.hawkular.inventory.api.model.Metric;
+import org.hawkular.inventory.paths.Path;
+import org.hawkular.inventory.paths.RelativePath;
+import org.hawkular.inventory.paths.SegmentType;
+import org.jboss.logging.Logger;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * <p>
+ * An inventory read from its JSON without building its structure. The JSON is only tokenized, then the metric
+ * types index, the blueprints of the metrics it references and the blueprint of the root are materialized, and the
+ * tokens are dropped: an inventory holds nothing else. A backfill only needs the avail metrics of a resource, not its
+ * whole structure.</p>
+ * <p>
+ * A metric blueprint is located by the ids of the segments of its relative path, walking the "children" of the
+ * serialized structure, each entity holding its blueprint under "data". When the metrics cannot be located this way
+ * the full {@link ExtendedInventoryStructure} is built instead, then only its metrics and root are kept.</p>
+ * <p>
+ * The heap held by an inventory is estimated from the tokens of the objects it keeps, see
+ * {@link #getRetainedBytes()}.</p>
+ *
+ * @author Joel Takvorian
+ */
+final class LazyInventory {
+
+    private static final Logger LOG = Logger.getLogger(LazyInventory.class);
+
+    private static final TypeReference<Map<String, Collection<String>>> INDEX_TYPE =
+            new TypeReference<Map<String, Collection<String>>>() {
+            };
+
+    private static final char SEPARATOR = '\u0000';
+
+    /**
+     * Rough heap estimates of what is materialized from a token: a string along with its chars, and any other
+     * value or structure.
+     */
+    private static final long STRING_BYTES = 56L;
+    private static final long TOKEN_BYTES = 16L;
+
+    private final Map<String, Collection<String>> metricTypesIndex;
+
+    /**
+     * The metric blueprints referenced by the metric types index, by relative path.
+     */
+    private final Map<String, Metric.Blueprint> metrics;
+
+    private final Entity.Blueprint root;
+
+    /**
+     * Whether the full structure had to be built, the metrics not being located.
+     */
+    private final boolean fullyRead;
+
+    private final long retainedBytes;
+
+    private LazyInventory(Map<String, Collection<String>> metricTypesIndex, Map<String, Metric.Blueprint> metrics,
+                          Entity.Blueprint root, boolean fullyRead, long retainedBytes) {
+        this.metricTypesIndex = metricTypesIndex;
+        this.metrics = metrics;
+        this.root = root;
+        this.fullyRead = fullyRead;
+        this.retainedBytes = retainedBytes;
+    }
+
+    /**
+     * Read an inventory, the stream is fully read. Its tokens are only held until its metrics and root are
+     * materialized.
+     */
+    static LazyInventory read(ObjectMapper mapper, InputStream in) throws IOException {
+        TokenBuffer json;
+        try (JsonParser parser = mapper.getFactory().createParser(in)) {
+            if (JsonToken.START_OBJECT != parser.nextToken()) {
+                throw new JsonParseException(parser, "Expected an inventory object");
+            }
+            json = new TokenBuffer(parser);
+            json.copyCurrentStructure(parser);
+        }
+
+        Map<String, Collection<String>> index = readMetricTypesIndex(mapper, json);
+        Set<String> relPaths = new LinkedHashSet<>();
+        index.values().forEach(relPaths::addAll);
+        Map<String, Metric.Blueprint> metrics = new HashMap<>();
+        long metricBytes = materialize(mapper, json, relPaths, metrics);
+        if (metricBytes >= 0L) {
+            TokenBuffer skeleton = skeleton(mapper, json);
+            Entity.Blueprint root;
+            try (JsonParser parser = skeleton.asParser(mapper)) {
+                root = mapper.readValue(parser, ExtendedInventoryStructure.class).getStructure().getRoot();
+            }
+            return new LazyInventory(index, metrics, root, false, metricBytes + estimate(mapper, skeleton));
+        }
+
+        ExtendedInventoryStructure full;
+        try (JsonParser parser = json.asParser(mapper)) {
+            full = mapper.readValue(parser, ExtendedInventoryStructure.class);
+        }
+        metrics.clear();
+        for (String relPath : relPaths) {
+            Entity.Blueprint bp = full.getStructure().get(RelativePath.fromString(relPath));
+            if (bp instanceof Metric.Blueprint) {
+                metrics.put(relPath, (Metric.Blueprint) bp);
+            }
+        }
+        // the metrics and root are only part of it
+        return new LazyInventory(index, metrics, full.getStructure().getRoot(), true, estimate(mapper, json));
+    }
+
+    /**
+     * @return the metric types index, metric type id -> relative paths of the metrics of the type
+     */
+    Map<String, Collection<String>> getMetricTypesIndex() {
+        return metricTypesIndex;
+    }
+
+    /**
+     * @return the blueprint of the root entity
+     */
+    Entity.Blueprint getRoot() {
+        return root;
+    }
+
+    /**
+     * @return an estimate of the heap held by the index, metrics and root of the inventory, in bytes
+     */
+    long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    @VisibleForTesting
+    boolean isFullyRead() {
+        return fullyRead;
+    }
+
+    /**
+     * @return the metric blueprints of each of the metric types, keyed by metric type id in the order of the types,
+     * a type without metrics mapping to an empty list
+     */
+    Map<String, List<Metric.Blueprint>> getMetricsByType(Collection<String> metricTypeIds) {
+        Map<String, List<Metric.Blueprint>> result = new LinkedHashMap<>();
+        for (String metricTypeId : metricTypeIds) {
+            result.put(metricTypeId, lookup(metricTypesIndex.getOrDefault(metricTypeId, Collections.emptyList())));
+        }
+        return result;
+    }
+
+    /**
+     * @return the metric blueprints at the relative paths, in the order of the paths. Paths not pointing to a metric
+     * are ignored.
+     */
+    private List<Metric.Blueprint> lookup(Collection<String> relPaths) {
+        List<Metric.Blueprint> result = new ArrayList<>(relPaths.size());
+        for (String relPath : relPaths) {
+            Metric.Blueprint metric = metrics.get(relPath);
+            if (null != metric) {
+                result.add(metric);
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, Collection<String>> readMetricTypesIndex(ObjectMapper mapper, TokenBuffer json)
+            throws IOException {
+        Map<String, Collection<String>> result = Collections.emptyMap();
+        try (JsonParser parser = json.asParser(mapper)) {
+            parser.nextToken();
+            while (JsonToken.FIELD_NAME == parser.nextToken()) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("metricTypesIndex".equals(field) && JsonToken.START_OBJECT == parser.getCurrentToken()) {
+                    result = parser.readValueAs(INDEX_TYPE);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a copy of the inventory whose structure has no children, to read its root alone
+     */
+    private static TokenBuffer skeleton(ObjectMapper mapper, TokenBuffer json) throws IOException {
+        TokenBuffer skeleton = new TokenBuffer(mapper, false);
+        try (JsonParser parser = json.asParser(mapper)) {
+            parser.nextToken();
+            skeleton.writeStartObject();
+            while (JsonToken.FIELD_NAME == parser.nextToken()) {
+                String field = parser.getCurrentName();
+                skeleton.copyCurrentEvent(parser);
+                if (JsonToken.START_OBJECT == parser.nextToken() && "structure".equals(field)) {
+                    skeleton.writeStartObject();
+                    while (JsonToken.FIELD_NAME == parser.nextToken()) {
+                        String entityField = parser.getCurrentName();
+                        parser.nextToken();
+                        if ("children".equals(entityField)) {
+                            parser.skipChildren();
+                            skeleton.writeFieldName(entityField);
+                            skeleton.writeStartObject();
+                            skeleton.writeEndObject();
+                        } else {
+                            skeleton.writeFieldName(entityField);
+                            skeleton.copyCurrentStructure(parser);
+                        }
+                    }
+                    skeleton.writeEndObject();
+                } else {
+                    skeleton.copyCurrentStructure(parser);
+                }
+            }
+            skeleton.writeEndObject();
+        }
+        return skeleton;
+    }
+
+    /**
+     * @return an estimate of the heap held by the objects materialized from the tokens, in bytes
+     */
+    private static long estimate(ObjectMapper mapper, TokenBuffer json) throws IOException {
+        long result = 0L;
+        try (JsonParser parser = json.asParser(mapper)) {
+            JsonToken token;
+            while (null != (token = parser.nextToken())) {
+                result += estimate(parser, token);
+            }
+        }
+        return result;
+    }
+
+    private static long estimate(JsonParser parser, JsonToken token) throws IOException {
+        if (JsonToken.FIELD_NAME == token || JsonToken.VALUE_STRING == token) {
+            return STRING_BYTES + 2L * parser.getTextLength();
+        }
+        return TOKEN_BYTES;
+    }
+
+    /**
+     * Materialize the metrics at the relative paths.
+     *
+     * @return the estimated heap held by the metrics, see {@link #estimate(JsonParser, JsonToken)}, -1 if the
+     * metrics could not be located, none is then materialized
+     */
+    private static long materialize(ObjectMapper mapper, TokenBuffer json, Collection<String> relPaths,
+                                    Map<String, Metric.Blueprint> metrics) {
+        // first pass: locate the data of the wanted metrics by token index, without materializing anything
+        Map<String, String> wanted = new HashMap<>();
+        for (String relPath : relPaths) {
+            String key = metricKey(relPath);
+            if (null == key || null != wanted.put(key, relPath)) {
+                LOG.warnf("Could not locate the metric %s in the inventory, using the full structure", relPath);
+                return -1L;
+            }
+        }
+        if (wanted.isEmpty()) {
+            return 0L;
+        }
+        TreeMap<Integer, Located> located = new TreeMap<>();
+        try (JsonParser parser = json.asParser(mapper)) {
+            Cursor cursor = new Cursor(parser);
+            cursor.next();
+            while (JsonToken.FIELD_NAME == cursor.next()) {
+                String field = parser.getCurrentName();
+                if (JsonToken.START_OBJECT == cursor.next() && "structure".equals(field)) {
+                    cursor.walkEntity("", wanted, located);
+                } else {
+                    cursor.skip();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not locate the metrics in the inventory, using the full structure", e);
+            return -1L;
+        }
+        if (located.size() != wanted.size()) {
+            LOG.warnf("Could not locate %d of the metrics in the inventory, using the full structure",
+                    wanted.size() - located.size());
+            return -1L;
+        }
+
+        // second pass: materialize the located metrics only
+        long bytes = 0L;
+        try (JsonParser parser = json.asParser(mapper)) {
+            int index = -1;
+            for (Map.Entry<Integer, Located> entry : located.entrySet()) {
+                while (index < entry.getKey()) {
+                    parser.nextToken();
+                    ++index;
+                }
+                Metric.Blueprint metric = mapper.readValue(parser, Metric.Blueprint.class);
+                metrics.put(entry.getValue().relPath, metric);
+                bytes += entry.getValue().bytes;
+                // the parser is now on the END_OBJECT of the data
+                index = entry.getValue().endIndex;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not materialize the metrics of the inventory, using the full structure", e);
+            metrics.clear();
+            return -1L;
+        }
+        return bytes;
+    }
+
+    private static final class Located {
+        private final String relPath;
+        private final int endIndex;
+        private final long bytes;
+
+        Located(String relPath, int endIndex, long bytes) {
+            this.relPath = relPath;
+            this.endIndex = endIndex;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * @return the ids of the segments of a metric relative path, each followed by a separator no id contains, null
+     * if not a path to a metric
+     */
+    private static String metricKey(String relPath) {
+        try {
+            List<Path.Segment> segments = RelativePath.fromString(relPath).getPath();
+            if (segments.isEmpty() || SegmentType.m != segments.get(segments.size() - 1).getElementType()) {
+                return null;
+            }
+            StringBuilder key = new StringBuilder();
+            for (Path.Segment segment : segments) {
+                if (SegmentType.up == segment.getElementType()) {
+                    return null;
+                }
+                key.append(segment.getElementId()).append(SEPARATOR);
+            }
+            return key.toString();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Walks the tokens, counting them along with their estimated heap.
+     */
+    private static final class Cursor {
+        private final JsonParser parser;
+        private int index = -1;
+        private long bytes;
+
+        Cursor(JsonParser parser) {
+            this.parser = parser;
+        }
+
+        JsonToken next() throws IOException {
+            ++index;
+            JsonToken token = parser.nextToken();
+            if (null != token) {
+                bytes += estimate(parser, token);
+            }
+            return token;
+        }
+
+        /**
+         * Skip the current value, the cursor is then on its last token.
+         */
+        void skip() throws IOException {
+            JsonToken token = parser.getCurrentToken();
+            if (JsonToken.START_OBJECT != token && JsonToken.START_ARRAY != token) {
+                return;
+            }
+            int depth = 1;
+            while (depth > 0) {
+                token = next();
+                if (null == token) {
+                    throw new IOException("Unexpected end of inventory");
+                }
+                if (JsonToken.START_OBJECT == token || JsonToken.START_ARRAY == token) {
+                    ++depth;
+                } else if (JsonToken.END_OBJECT == token || JsonToken.END_ARRAY == token) {
+                    --depth;
+                }
+            }
+        }
+
+        /**
+         * Walk an entity, the cursor being on its START_OBJECT: {"data": {...}, "children": {"type": [...]}}.
+         *
+         * @param key the ids of the path of the entity, see {@link LazyInventory#metricKey(String)}
+         */
+        void walkEntity(String key, Map<String, String> wanted, Map<Integer, Located> located) throws IOException {
+            while (JsonToken.FIELD_NAME == next()) {
+                String field = parser.getCurrentName();
+                if (JsonToken.START_OBJECT == next() && "children".equals(field)) {
+                    walkChildren(key, wanted, located);
+                } else {
+                    skip();
+                }
+            }
+        }
+
+        private void walkChildren(String key, Map<String, String> wanted, Map<Integer, Located> located)
+                throws IOException {
+            while (JsonToken.FIELD_NAME == next()) {
+                if (JsonToken.START_ARRAY != next()) {
+                    skip();
+                    continue;
+                }
+                JsonToken token;
+                while (JsonToken.START_OBJECT == (token = next())) {
+                    walkChild(key, wanted, located);
+                }
+                if (JsonToken.END_ARRAY != token) {
+                    throw new IOException("Unexpected inventory children: " + token);
+                }
+            }
+        }
+
+        /**
+         * Walk a child entity, the cursor being on its START_OBJECT. Its "data" must come first, to know its id.
+         */
+        private void walkChild(String parentKey, Map<String, String> wanted, Map<Integer, Located> located)
+                throws IOException {
+            if (JsonToken.FIELD_NAME != next() || !"data".equals(parser.getCurrentName())
+                    || JsonToken.START_OBJECT != next()) {
+                throw new IOException("Unexpected inventory entity, data expected first");
+            }
+            int dataIndex = index;
+            long dataBytes = bytes;
+            String id = null;
+            while (JsonToken.FIELD_NAME == next()) {
+                String field = parser.getCurrentName();
+                JsonToken token = next();
+                if ("id".equals(field) && JsonToken.VALUE_STRING == token) {
+                    id = parser.getText();
+                } else {
+                    skip();
+                }
+            }
+            if (null == id) {
+                throw new IOException("Unexpected inventory entity, no id");
+            }
+            String key = parentKey + id + SEPARATOR;
+            String relPath = wanted.get(key);
+            if (null != relPath) {
+                located.put(dataIndex, new Located(relPath, index, TOKEN_BYTES + bytes - dataBytes));
+            }
+            // the rest of the entity, i.e. its children
+            walkEntity(key, wanted, located);
+        }
+    }
+}
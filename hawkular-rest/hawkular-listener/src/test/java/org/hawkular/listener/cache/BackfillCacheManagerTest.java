@@ -0,0 +1,313 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+import org.hawkular.listener.cache.BackfillCacheManager.CacheValue;
+import org.hawkular.metrics.core.service.MetricsService;
+import org.hawkular.metrics.model.AvailabilityType;
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.MetricType;
+import org.hawkular.metrics.model.Tenant;
+import org.infinispan.Cache;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.remoting.transport.Address;
+import org.infinispan.remoting.transport.Transport;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import rx.Observable;
+
+/**
+ * @author Joel Takvorian
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class BackfillCacheManagerTest {
+
+    private static final String FEED_METRIC_ID = BackfillCacheManager.FEED_PREFIX + "feed1";
+
+    /**
+     * Way longer than a backfill takes, inventory reads and batch window included.
+     */
+    private static final long AWAIT_MS = 10000L;
+
+    /**
+     * Longer than the batch window, so that any avail written after the awaited ones is seen.
+     */
+    private static final long BATCH_MARGIN_MS = 2000L;
+
+    @Mock
+    private MetricsService metricsService;
+
+    @Mock
+    private EmbeddedCacheManager clusterManager;
+
+    private DefaultCacheManager cacheManager;
+    private Cache<CacheKey, CacheValue> cache;
+    private BackfillCacheManager manager;
+
+    /**
+     * The avails written by the backfills.
+     */
+    private final List<Metric<?>> backfilled = new CopyOnWriteArrayList<>();
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        cacheManager = new DefaultCacheManager();
+        cache = cacheManager.getCache("backfill");
+        // no inventory, a backfill only writes the avail of the feed itself
+        when(metricsService.findMetricsWithFilters(anyString(), anyObject(), anyString()))
+                .thenReturn(Observable.empty());
+        // but the feed is known to be on t1, for the feeds whose tenants are not known
+        when(metricsService.getTenants()).thenReturn(Observable.just(new Tenant("t1")));
+        when(metricsService.findMetricsWithFilters(eq("t1"), eq(MetricType.STRING), eq("module:inventory,feed:feed1")))
+                .thenReturn(Observable.just(new Metric<>("inventory.feed1", null, 7, MetricType.STRING, null)));
+        when(metricsService.addDataPoints(anyObject(), anyObject())).thenAnswer(invocation -> {
+            Observable<Metric<?>> metrics = invocation.getArgumentAt(1, Observable.class);
+            metrics.subscribe(backfilled::add);
+            return Observable.empty();
+        });
+    }
+
+    @After
+    public void tearDown() {
+        if (null != manager) {
+            manager.close();
+        }
+        cacheManager.stop();
+    }
+
+    private void start(String detection) {
+        manager = new BackfillCacheManager(cacheManager, cache, metricsService, detection);
+        manager.init();
+    }
+
+    /**
+     * Start a cluster member, the first of the given members.
+     */
+    private void startMember(Address... members) {
+        when(clusterManager.getTransport()).thenReturn(mock(Transport.class));
+        when(clusterManager.getMembers()).thenReturn(Arrays.asList(members));
+        when(clusterManager.getAddress()).thenReturn(members[0]);
+        manager = new BackfillCacheManager(clusterManager, cache, metricsService, "tenant");
+        manager.init();
+    }
+
+    /**
+     * Establish the ping period of a feed, a minute, as of two minutes ago.
+     *
+     * @return the time of its latest ping, a minute ago
+     */
+    private long establishPingPeriod(String tenantId, String feedAvailabilityMetricId) {
+        long firstPing = System.currentTimeMillis() - 120000L;
+        manager.updateFeedAvailability(tenantId, feedAvailabilityMetricId, firstPing);
+        manager.updateFeedAvailability(tenantId, feedAvailabilityMetricId, firstPing + 60000L);
+        return firstPing + 60000L;
+    }
+
+    /**
+     * Wait for the backfills to write the given number of avails, and make sure no more are written.
+     */
+    private void awaitBackfilled(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + AWAIT_MS;
+        while (backfilled.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50L);
+        }
+        Thread.sleep(BATCH_MARGIN_MS);
+        Assert.assertEquals(count, backfilled.size());
+    }
+
+    @Test
+    public void shouldCoalescePingsWithinWriteGranularity() {
+        start("tenant");
+        CacheKey key = new CacheKey("t1", FEED_METRIC_ID);
+        long lastPing = establishPingPeriod("t1", FEED_METRIC_ID);
+        Assert.assertEquals(new CacheValue(lastPing, 150000L), cache.get(key));
+
+        // within the write granularity of the cached ping, only recorded locally
+        manager.updateFeedAvailability("t1", FEED_METRIC_ID, lastPing + 30000L);
+        Assert.assertEquals(lastPing, cache.get(key).getLastUpdateTime());
+
+        // written once the cached ping is older than the write granularity
+        manager.updateFeedAvailability("t1", FEED_METRIC_ID, lastPing + 60000L);
+        Assert.assertEquals(new CacheValue(lastPing + 60000L, 150000L), cache.get(key));
+    }
+
+    @Test
+    public void shouldFlushCoalescedPingOnClose() {
+        start("tenant");
+        CacheKey key = new CacheKey("t1", FEED_METRIC_ID);
+        long lastPing = establishPingPeriod("t1", FEED_METRIC_ID);
+        manager.updateFeedAvailability("t1", FEED_METRIC_ID, lastPing + 30000L);
+
+        manager.close();
+        manager = null;
+        Assert.assertEquals(new CacheValue(lastPing + 30000L, 150000L), cache.get(key));
+    }
+
+    @Test
+    public void shouldFlushCoalescedPingOfReleasedFeed() {
+        Address self = mock(Address.class);
+        Address other = mock(Address.class);
+        startMember(self, other);
+        String feedAvailabilityMetricId = FEED_METRIC_ID;
+        for (int i = 2; !manager.isResponsible(feedAvailabilityMetricId); ++i) {
+            feedAvailabilityMetricId = BackfillCacheManager.FEED_PREFIX + "feed" + i;
+        }
+        CacheKey key = new CacheKey("t1", feedAvailabilityMetricId);
+        long lastPing = establishPingPeriod("t1", feedAvailabilityMetricId);
+        manager.updateFeedAvailability("t1", feedAvailabilityMetricId, lastPing + 30000L);
+        Assert.assertEquals(lastPing, cache.get(key).getLastUpdateTime());
+
+        // the same members, as seen by the other member: all of the feeds of this member change owner
+        when(clusterManager.getAddress()).thenReturn(other);
+        manager.processTopologyChange();
+        Assert.assertFalse(manager.isResponsible(feedAvailabilityMetricId));
+        Assert.assertEquals(new CacheValue(lastPing + 30000L, 150000L), cache.get(key));
+    }
+
+    @Test
+    public void shouldNotMoveBatchedPingsBack() {
+        start("tenant");
+        String feed2MetricId = BackfillCacheManager.FEED_PREFIX + "feed2";
+        List<MetricId<AvailabilityType>> pings = Arrays.asList(
+                new MetricId<>("t1", MetricType.AVAILABILITY, FEED_METRIC_ID),
+                new MetricId<>("t1", MetricType.AVAILABILITY, feed2MetricId));
+        long now = System.currentTimeMillis();
+
+        manager.updateFeedAvailabilities(pings, now);
+        // a message received earlier, applied late by another submitter thread
+        manager.updateFeedAvailabilities(pings, now - 10000L);
+        Assert.assertEquals(now, cache.get(new CacheKey("t1", FEED_METRIC_ID)).getLastUpdateTime());
+        Assert.assertEquals(now, cache.get(new CacheKey("t1", feed2MetricId)).getLastUpdateTime());
+
+        manager.updateFeedAvailabilities(pings, now + 60000L);
+        Assert.assertEquals(new CacheValue(now + 60000L, 150000L), cache.get(new CacheKey("t1", FEED_METRIC_ID)));
+        Assert.assertEquals(new CacheValue(now + 60000L, 150000L), cache.get(new CacheKey("t1", feed2MetricId)));
+    }
+
+    @Test
+    public void shouldTakeFeedPingPeriodBetweenRounds() {
+        start("feed");
+        CacheKey feedKey = new CacheKey(BackfillCacheManager.FEED_TENANT, FEED_METRIC_ID);
+        long now = System.currentTimeMillis();
+
+        // the pings of the two tenants of the feed, a few ms apart
+        manager.updateFeedAvailability("t1", FEED_METRIC_ID, now);
+        manager.updateFeedAvailability("t2", FEED_METRIC_ID, now + 3L);
+        Assert.assertFalse(cache.get(feedKey).hasBackfillJob());
+        Assert.assertEquals(now, cache.get(feedKey).getLastUpdateTime());
+
+        // the next round, a minute later
+        manager.updateFeedAvailability("t2", FEED_METRIC_ID, now + 60000L);
+        manager.updateFeedAvailability("t1", FEED_METRIC_ID, now + 60004L);
+        Assert.assertTrue(cache.get(feedKey).hasBackfillJob());
+        Assert.assertEquals(150000L, cache.get(feedKey).getMaxQuietPeriodMs());
+    }
+
+    @Test
+    public void shouldForceBackfillOncePerWindow() throws InterruptedException {
+        start("tenant");
+        establishPingPeriod("t1", FEED_METRIC_ID);
+        long now = System.currentTimeMillis();
+
+        manager.forceBackfill("feed1", now);
+        awaitBackfilled(1);
+        Assert.assertFalse(cache.get(new CacheKey("t1", FEED_METRIC_ID)).hasBackfillJob());
+
+        // the feed pinged since its backfill, only the force window holds the next one back
+        manager.updateFeedAvailability("t1", FEED_METRIC_ID, System.currentTimeMillis() + 1L);
+        manager.forceBackfill("feed1", now + 1000L);
+        awaitBackfilled(1);
+
+        // past the force window
+        manager.forceBackfill("feed1", now + 20000L);
+        awaitBackfilled(2);
+    }
+
+    @Test
+    public void shouldForceBackfillAllTenantsOfFeed() throws InterruptedException {
+        start("tenant");
+        establishPingPeriod("t1", FEED_METRIC_ID);
+        establishPingPeriod("t2", FEED_METRIC_ID);
+
+        manager.forceBackfill("feed1", System.currentTimeMillis());
+        awaitBackfilled(2);
+        Set<String> tenantIds = new HashSet<>();
+        backfilled.forEach(metric -> tenantIds.add(metric.getMetricId().getTenantId()));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("t1", "t2")), tenantIds);
+    }
+
+    @Test
+    public void shouldBackfillOncePerOutage() throws InterruptedException {
+        start("tenant");
+        establishPingPeriod("t1", FEED_METRIC_ID);
+        long now = System.currentTimeMillis();
+        manager.forceBackfill("feed1", now);
+        awaitBackfilled(1);
+
+        // past the force window, but the feed did not ping since its backfill
+        manager.forceBackfill("feed1", now + 20000L);
+        awaitBackfilled(1);
+
+        // the feed pinged since its backfill
+        manager.updateFeedAvailability("t1", FEED_METRIC_ID, System.currentTimeMillis() + 1L);
+        manager.forceBackfill("feed1", now + 40000L);
+        awaitBackfilled(2);
+    }
+
+    @Test
+    public void shouldBackfillAllTenantsOfFeedDetector() throws InterruptedException {
+        start("feed");
+        CacheKey feedKey = new CacheKey(BackfillCacheManager.FEED_TENANT, FEED_METRIC_ID);
+        long firstRound = System.currentTimeMillis() - 120000L;
+        manager.updateFeedAvailability("t1", FEED_METRIC_ID, firstRound);
+        manager.updateFeedAvailability("t2", FEED_METRIC_ID, firstRound + 3L);
+        manager.updateFeedAvailability("t1", FEED_METRIC_ID, firstRound + 60000L);
+        manager.updateFeedAvailability("t2", FEED_METRIC_ID, firstRound + 60003L);
+        Assert.assertTrue(cache.get(feedKey).hasBackfillJob());
+        // a single detector for the feed
+        Assert.assertNull(cache.get(new CacheKey("t1", FEED_METRIC_ID)));
+
+        manager.forceBackfill("feed1", System.currentTimeMillis());
+        awaitBackfilled(2);
+        Set<String> tenantIds = new HashSet<>();
+        backfilled.forEach(metric -> tenantIds.add(metric.getMetricId().getTenantId()));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("t1", "t2")), tenantIds);
+        Assert.assertFalse(cache.get(feedKey).hasBackfillJob());
+    }
+}
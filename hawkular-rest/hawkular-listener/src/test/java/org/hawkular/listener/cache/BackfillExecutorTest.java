@@ -0,0 +1,247 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+import org.hawkular.metrics.core.service.MetricsService;
+import org.hawkular.metrics.model.AvailabilityType;
+import org.hawkular.metrics.model.DataPoint;
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.MetricType;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import rx.Observable;
+import rx.subjects.PublishSubject;
+
+/**
+ * @author Joel Takvorian
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class BackfillExecutorTest {
+
+    /**
+     * Way longer than any scheduling hiccup of a loaded machine.
+     */
+    private static final long AWAIT_MS = 5000L;
+
+    /**
+     * Long enough for a wrongly started backfill or write to show up.
+     */
+    private static final long MARGIN_MS = 500L;
+
+    @Mock
+    private MetricsService metricsService;
+
+    private BackfillExecutor executor;
+
+    /**
+     * The avails of each successful write.
+     */
+    private final List<List<Metric<?>>> writes = new CopyOnWriteArrayList<>();
+
+    /**
+     * The number of writes still to fail.
+     */
+    private final AtomicInteger writeFailures = new AtomicInteger();
+
+    /**
+     * The feeds handed to the failure callback.
+     */
+    private final List<CacheKey> failed = new CopyOnWriteArrayList<>();
+
+    /**
+     * The feeds whose backfill started, in order.
+     */
+    private final List<CacheKey> started = new CopyOnWriteArrayList<>();
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        when(metricsService.addDataPoints(anyObject(), anyObject())).thenAnswer(invocation -> {
+            Observable<Metric<?>> metrics = invocation.getArgumentAt(1, Observable.class);
+            List<Metric<?>> written = metrics.toList().toBlocking().single();
+            if (writeFailures.getAndDecrement() > 0) {
+                return Observable.error(new RuntimeException("Write failed"));
+            }
+            writes.add(written);
+            return Observable.empty();
+        });
+    }
+
+    @After
+    public void tearDown() {
+        if (null != executor) {
+            executor.shutdown();
+        }
+    }
+
+    private void start(int maxConcurrency, long batchWindowMs, int batchMaxMetrics) {
+        executor = new BackfillExecutor(maxConcurrency, batchWindowMs, batchMaxMetrics, () -> metricsService,
+                failed::add);
+    }
+
+    private static CacheKey key(String tenantId, String feedId) {
+        return new CacheKey(tenantId, BackfillCacheManager.FEED_PREFIX + feedId);
+    }
+
+    private static Observable<Metric<AvailabilityType>> avail(CacheKey key) {
+        MetricId<AvailabilityType> metricId = new MetricId<>(key.getTenantId(), MetricType.AVAILABILITY,
+                key.getMetricId());
+        return Observable.just(new Metric<>(metricId,
+                Collections.singletonList(new DataPoint<>(0L, AvailabilityType.DOWN))));
+    }
+
+    /**
+     * Submit a backfill whose avails are resolved once its subject completes, recording its start.
+     */
+    private PublishSubject<Metric<AvailabilityType>> submitPending(CacheKey key) {
+        PublishSubject<Metric<AvailabilityType>> resolution = PublishSubject.create();
+        executor.submit(key, Observable.defer(() -> {
+            started.add(key);
+            return resolution;
+        }));
+        return resolution;
+    }
+
+    private static void await(List<?> list, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + AWAIT_MS;
+        while (list.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        Assert.assertEquals(size, list.size());
+    }
+
+    @Test
+    public void shouldWriteBatchWindowAtOnce() throws InterruptedException {
+        start(4, MARGIN_MS, 100);
+        for (CacheKey key : Arrays.asList(key("t1", "feed1"), key("t1", "feed2"), key("t2", "feed3"))) {
+            executor.submit(key, avail(key));
+        }
+
+        await(writes, 1);
+        Thread.sleep(2 * MARGIN_MS);
+        Assert.assertEquals(1, writes.size());
+        Assert.assertEquals(3, writes.get(0).size());
+    }
+
+    @Test
+    public void shouldWriteFullBatchBeforeWindowEnds() throws InterruptedException {
+        start(4, 60000L, 2);
+        for (CacheKey key : Arrays.asList(key("t1", "feed1"), key("t2", "feed2"))) {
+            executor.submit(key, avail(key));
+        }
+
+        // well before the end of the window
+        await(writes, 1);
+        Assert.assertEquals(2, writes.get(0).size());
+    }
+
+    @Test
+    public void shouldCapConcurrentBackfills() throws InterruptedException {
+        start(2, 0L, 100);
+        Map<CacheKey, PublishSubject<Metric<AvailabilityType>>> resolutions = new HashMap<>();
+        for (int i = 1; i <= 4; ++i) {
+            CacheKey key = key("t" + i, "feed" + i);
+            resolutions.put(key, submitPending(key));
+        }
+
+        await(started, 2);
+        Thread.sleep(MARGIN_MS);
+        Assert.assertEquals(2, started.size());
+
+        // one resolved, the next one starts
+        resolutions.get(started.get(0)).onCompleted();
+        await(started, 3);
+        Thread.sleep(MARGIN_MS);
+        Assert.assertEquals(3, started.size());
+    }
+
+    @Test
+    public void shouldServeTenantsInTurn() throws InterruptedException {
+        start(1, 0L, 100);
+        List<CacheKey> keys = Arrays.asList(key("t1", "a"), key("t1", "b"), key("t1", "c"), key("t1", "e"),
+                key("t2", "d"));
+        Map<CacheKey, PublishSubject<Metric<AvailabilityType>>> resolutions = new HashMap<>();
+        for (CacheKey key : keys) {
+            resolutions.put(key, submitPending(key));
+        }
+
+        for (int i = 1; i <= keys.size(); ++i) {
+            await(started, i);
+            resolutions.get(started.get(i - 1)).onCompleted();
+        }
+        // a started alone, then t2 is served before the rest of t1
+        Assert.assertEquals(Arrays.asList(key("t1", "a"), key("t1", "b"), key("t2", "d"), key("t1", "c"),
+                key("t1", "e")), started);
+    }
+
+    @Test
+    public void shouldRetryFailedWrite() throws InterruptedException {
+        writeFailures.set(BackfillExecutor.MAX_WRITE_ATTEMPTS - 1);
+        start(4, 50L, 100);
+        CacheKey key = key("t1", "feed1");
+        executor.submit(key, avail(key));
+
+        await(writes, 1);
+        Assert.assertEquals(1, writes.get(0).size());
+        Assert.assertTrue(failed.isEmpty());
+    }
+
+    @Test
+    public void shouldReportFeedsOfFailedWrite() throws InterruptedException {
+        writeFailures.set(BackfillExecutor.MAX_WRITE_ATTEMPTS);
+        start(4, 50L, 100);
+        List<CacheKey> keys = Arrays.asList(key("t1", "feed1"), key("t2", "feed2"));
+        for (CacheKey key : keys) {
+            executor.submit(key, avail(key));
+        }
+
+        await(failed, 2);
+        Assert.assertTrue(failed.containsAll(keys));
+        Assert.assertTrue(writes.isEmpty());
+    }
+
+    @Test
+    public void shouldReportFeedOfFailedResolution() throws InterruptedException {
+        start(4, 50L, 100);
+        CacheKey key = key("t1", "feed1");
+        executor.submit(key, Observable.error(new RuntimeException("Inventory read failed")));
+
+        await(failed, 1);
+        Assert.assertEquals(key, failed.get(0));
+        Thread.sleep(MARGIN_MS);
+        Assert.assertTrue(writes.isEmpty());
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Joel Takvorian
+ */
+public class ByteBudgetTest {
+
+    @Test
+    public void shouldGrantInOrderAsBytesAreReleased() {
+        ByteBudget budget = new ByteBudget(100L);
+        List<Long> granted = new ArrayList<>();
+
+        budget.reserve(60L, granted::add);
+        budget.reserve(50L, granted::add);
+        budget.reserve(10L, granted::add);
+        // the small reservation waits behind the large one
+        Assert.assertEquals(1, granted.size());
+        Assert.assertEquals(2, budget.getWaiting());
+        Assert.assertEquals(40L, budget.getAvailable());
+
+        budget.release(60L);
+        Assert.assertEquals(3, granted.size());
+        Assert.assertEquals(Long.valueOf(50L), granted.get(1));
+        Assert.assertEquals(Long.valueOf(10L), granted.get(2));
+        Assert.assertEquals(40L, budget.getAvailable());
+        Assert.assertEquals(0, budget.getWaiting());
+    }
+
+    @Test
+    public void shouldGrantWholeBudgetToOversizedReservation() {
+        ByteBudget budget = new ByteBudget(100L);
+        List<Long> granted = new ArrayList<>();
+
+        budget.reserve(20L, granted::add);
+        budget.reserve(500L, granted::add);
+        Assert.assertEquals(1, granted.size());
+
+        budget.release(20L);
+        Assert.assertEquals(Long.valueOf(100L), granted.get(1));
+        Assert.assertEquals(0L, budget.getAvailable());
+
+        budget.release(100L);
+        Assert.assertEquals(budget.getCapacity(), budget.getAvailable());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKeyExternalizer;
+import org.hawkular.listener.cache.BackfillCacheManager.CacheValue;
+import org.hawkular.listener.cache.BackfillCacheManager.CacheValueExternalizer;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Joel Takvorian
+ */
+public class CacheExternalizerTest {
+
+    @Test
+    public void shouldRoundTripFeedKey() throws IOException {
+        CacheKey key = new CacheKey("tenant", BackfillCacheManager.FEED_PREFIX + "feed1");
+        CacheKey result = roundTrip(key);
+        Assert.assertEquals(key, result);
+        Assert.assertEquals(key.hashCode(), result.hashCode());
+        Assert.assertEquals("feed1", result.getFeedId());
+    }
+
+    @Test
+    public void shouldRoundTripFeedLevelKey() throws IOException {
+        CacheKey key = new CacheKey(BackfillCacheManager.FEED_TENANT, BackfillCacheManager.FEED_PREFIX + "feed1");
+        CacheKey result = roundTrip(key);
+        Assert.assertEquals(key, result);
+        Assert.assertTrue(result.isFeedKey());
+        Assert.assertFalse(new CacheKey("tenant", BackfillCacheManager.FEED_PREFIX + "feed1").isFeedKey());
+    }
+
+    @Test
+    public void shouldRoundTripOtherKey() throws IOException {
+        CacheKey key = new CacheKey("tenant", "some-metric");
+        Assert.assertEquals(key, roundTrip(key));
+    }
+
+    @Test
+    public void shouldRoundTripValue() throws IOException {
+        CacheValue value = new CacheValue(System.currentTimeMillis(), 150000L);
+        Assert.assertEquals(value, roundTrip(value));
+
+        value = new CacheValue(System.currentTimeMillis(), 0L);
+        Assert.assertEquals(value, roundTrip(value));
+    }
+
+    private CacheKey roundTrip(CacheKey key) throws IOException {
+        CacheKeyExternalizer externalizer = new CacheKeyExternalizer();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            externalizer.writeObject(out, key);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return externalizer.readObject(in);
+        }
+    }
+
+    private CacheValue roundTrip(CacheValue value) throws IOException {
+        CacheValueExternalizer externalizer = new CacheValueExternalizer();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            externalizer.writeObject(out, value);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return externalizer.readObject(in);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Joel Takvorian
+ */
+public class ConsistentHashRingTest {
+
+    private static final int FEEDS = 10000;
+
+    private final List<String> feeds = new ArrayList<>(FEEDS);
+
+    public ConsistentHashRingTest() {
+        for (int i = 0; i < FEEDS; ++i) {
+            feeds.add(BackfillCacheManager.FEED_PREFIX + "feed-" + i);
+        }
+    }
+
+    @Test
+    public void shouldAgreeWhateverTheMemberOrder() {
+        ConsistentHashRing ring1 = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3"), 128);
+        ConsistentHashRing ring2 = new ConsistentHashRing(Arrays.asList("node3", "node1", "node2"), 128);
+        for (String feed : feeds) {
+            Assert.assertEquals(ring1.ownerOf(feed), ring2.ownerOf(feed));
+        }
+    }
+
+    @Test
+    public void shouldBalanceFeeds() {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3", "node4"), 128);
+
+        Map<String, Integer> distribution = ring.getDistribution(feeds);
+        Assert.assertEquals(4, distribution.size());
+        int total = 0;
+        for (int owned : distribution.values()) {
+            Assert.assertTrue("Unbalanced " + distribution, Math.abs(owned - FEEDS / 4) < FEEDS / 4 / 4);
+            total += owned;
+        }
+        Assert.assertEquals(FEEDS, total);
+
+        double shares = 0.0;
+        for (double share : ring.getHashSpaceShares().values()) {
+            shares += share;
+        }
+        Assert.assertEquals(1.0, shares, 0.0001);
+    }
+
+    @Test
+    public void shouldOnlyMoveFeedsOfJoiningMember() {
+        ConsistentHashRing before = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3"), 128);
+        ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3", "node4"), 128);
+
+        int moved = 0;
+        for (String feed : feeds) {
+            String owner = after.ownerOf(feed);
+            if (!owner.equals(before.ownerOf(feed))) {
+                Assert.assertEquals("node4", owner);
+                ++moved;
+            }
+        }
+        // about 1/4 of the feeds, far from the ~3/4 moved by modulo hashing
+        Assert.assertTrue("Moved " + moved, moved > FEEDS / 8 && moved < FEEDS * 3 / 8);
+    }
+}
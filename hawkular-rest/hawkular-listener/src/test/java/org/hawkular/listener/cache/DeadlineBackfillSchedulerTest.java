@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Joel Takvorian
+ */
+public class DeadlineBackfillSchedulerTest {
+
+    /**
+     * Way longer than any scheduling hiccup of a loaded machine, so that the pings and cancels never race a check.
+     */
+    private static final long MARGIN_MS = 1000L;
+
+    private final CacheKey key1 = new CacheKey("tenant", BackfillCacheManager.FEED_PREFIX + "feed1");
+    private final CacheKey key2 = new CacheKey("tenant", BackfillCacheManager.FEED_PREFIX + "feed2");
+
+    private DeadlineBackfillScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if (null != scheduler) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldCheckEarliestDeadlineFirst() throws InterruptedException {
+        CountDownLatch checked = new CountDownLatch(2);
+        List<CacheKey> checkedKeys = new CopyOnWriteArrayList<>();
+        scheduler = new DeadlineBackfillScheduler(1, k -> {
+            checkedKeys.add(k);
+            checked.countDown();
+            return -1L;
+        });
+
+        long now = System.currentTimeMillis();
+        scheduler.schedule(key1, now + 300L);
+        scheduler.schedule(key2, now + 100L);
+
+        Assert.assertTrue(checked.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(key2, checkedKeys.get(0));
+        Assert.assertEquals(key1, checkedKeys.get(1));
+        waitForSize(0);
+    }
+
+    @Test
+    public void shouldNotCheckWhilePinging() throws InterruptedException {
+        CountDownLatch checked = new CountDownLatch(1);
+        AtomicInteger count = new AtomicInteger();
+        List<Long> checkTimes = new CopyOnWriteArrayList<>();
+        scheduler = new DeadlineBackfillScheduler(1, k -> {
+            count.incrementAndGet();
+            checkTimes.add(System.currentTimeMillis());
+            checked.countDown();
+            return -1L;
+        });
+
+        scheduler.schedule(key1, System.currentTimeMillis() + MARGIN_MS);
+        long deadline = 0L;
+        for (int i = 0; i < 10; ++i) {
+            Thread.sleep(30L);
+            deadline = System.currentTimeMillis() + MARGIN_MS;
+            scheduler.ping(key1, deadline);
+        }
+        Assert.assertEquals(0, count.get());
+
+        Assert.assertTrue(checked.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue("Checked before deadline", checkTimes.get(0) >= deadline);
+        Assert.assertEquals(1, count.get());
+    }
+
+    @Test
+    public void shouldIgnorePingOfUnscheduledFeed() throws InterruptedException {
+        AtomicInteger count = new AtomicInteger();
+        scheduler = new DeadlineBackfillScheduler(1, k -> {
+            count.incrementAndGet();
+            return -1L;
+        });
+
+        scheduler.ping(key1, System.currentTimeMillis() + 50L);
+        Assert.assertFalse(scheduler.isScheduled(key1));
+
+        scheduler.schedule(key1, System.currentTimeMillis() + MARGIN_MS);
+        Assert.assertTrue(scheduler.cancel(key1));
+        scheduler.ping(key1, System.currentTimeMillis() + 50L);
+
+        // past the cancelled deadline
+        Thread.sleep(2 * MARGIN_MS);
+        Assert.assertEquals(0, count.get());
+    }
+
+    private void waitForSize(int expected) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000L;
+        while (scheduler.size() != expected && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10L);
+        }
+        Assert.assertEquals(expected, scheduler.size());
+    }
+}
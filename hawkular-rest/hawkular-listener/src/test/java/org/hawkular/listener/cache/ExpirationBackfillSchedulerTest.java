@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Joel Takvorian
+ */
+public class ExpirationBackfillSchedulerTest {
+
+    private static final long REAPER_INTERVAL_MS = 50L;
+
+    /**
+     * Way longer than any scheduling hiccup of a loaded machine, so that the schedules and cancels never race a check.
+     */
+    private static final long MARGIN_MS = 1000L;
+
+    private final CacheKey key = new CacheKey("tenant", BackfillCacheManager.FEED_PREFIX + "feed");
+
+    private DefaultCacheManager cacheManager;
+
+    private ExpirationBackfillScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        cacheManager = new DefaultCacheManager();
+    }
+
+    @After
+    public void tearDown() {
+        if (null != scheduler) {
+            scheduler.shutdown();
+        }
+        cacheManager.stop();
+    }
+
+    @Test
+    public void shouldCheckFeedWhenDeadlineComesDue() throws InterruptedException {
+        CountDownLatch checked = new CountDownLatch(1);
+        List<Long> checkTimes = new CopyOnWriteArrayList<>();
+        scheduler = new ExpirationBackfillScheduler(cacheManager, 1, REAPER_INTERVAL_MS, k -> {
+            checkTimes.add(System.currentTimeMillis());
+            checked.countDown();
+            return -1L;
+        });
+
+        long deadline = System.currentTimeMillis() + 100L;
+        Assert.assertTrue(scheduler.schedule(key, deadline));
+        Assert.assertTrue(scheduler.isScheduled(key));
+        Assert.assertFalse(scheduler.schedule(key, deadline));
+
+        Assert.assertTrue(checked.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue("Checked before deadline", checkTimes.get(0) >= deadline);
+        waitForSize(0);
+        Assert.assertFalse(scheduler.isScheduled(key));
+    }
+
+    @Test
+    public void shouldNotCheckCancelledFeed() throws InterruptedException {
+        AtomicInteger count = new AtomicInteger();
+        scheduler = new ExpirationBackfillScheduler(cacheManager, 1, REAPER_INTERVAL_MS, k -> {
+            count.incrementAndGet();
+            return -1L;
+        });
+
+        scheduler.schedule(key, System.currentTimeMillis() + MARGIN_MS);
+        Assert.assertTrue(scheduler.cancel(key));
+        Assert.assertFalse(scheduler.cancel(key));
+        Assert.assertFalse(scheduler.isScheduled(key));
+
+        // past the cancelled deadline
+        Thread.sleep(2 * MARGIN_MS);
+        Assert.assertEquals(0, count.get());
+    }
+
+    @Test
+    public void shouldRescheduleOnNextDeadline() throws InterruptedException {
+        CountDownLatch checked = new CountDownLatch(3);
+        AtomicInteger count = new AtomicInteger();
+        scheduler = new ExpirationBackfillScheduler(cacheManager, 1, REAPER_INTERVAL_MS, k -> {
+            checked.countDown();
+            return count.incrementAndGet() < 3 ? System.currentTimeMillis() + 20L : -1L;
+        });
+
+        scheduler.schedule(key, System.currentTimeMillis());
+
+        Assert.assertTrue(checked.await(5, TimeUnit.SECONDS));
+        waitForSize(0);
+        Assert.assertEquals(3, count.get());
+    }
+
+    @Test
+    public void shouldNotCheckWhilePinging() throws InterruptedException {
+        CountDownLatch checked = new CountDownLatch(1);
+        AtomicInteger count = new AtomicInteger();
+        List<Long> checkTimes = new CopyOnWriteArrayList<>();
+        scheduler = new ExpirationBackfillScheduler(cacheManager, 1, REAPER_INTERVAL_MS, k -> {
+            count.incrementAndGet();
+            checkTimes.add(System.currentTimeMillis());
+            checked.countDown();
+            return -1L;
+        });
+
+        scheduler.schedule(key, System.currentTimeMillis() + MARGIN_MS);
+        long deadline = 0L;
+        for (int i = 0; i < 10; ++i) {
+            Thread.sleep(30L);
+            deadline = System.currentTimeMillis() + MARGIN_MS;
+            scheduler.ping(key, deadline);
+        }
+        Assert.assertEquals(0, count.get());
+
+        Assert.assertTrue(checked.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue("Checked before deadline", checkTimes.get(0) >= deadline);
+        Assert.assertEquals(1, count.get());
+    }
+
+    @Test
+    public void shouldBeRecreatedAfterClose() throws InterruptedException {
+        AtomicInteger closedCount = new AtomicInteger();
+        scheduler = new ExpirationBackfillScheduler(cacheManager, 1, REAPER_INTERVAL_MS, k -> {
+            closedCount.incrementAndGet();
+            return -1L;
+        });
+        scheduler.schedule(key, System.currentTimeMillis() + MARGIN_MS);
+        scheduler.shutdown();
+
+        // as on a redeploy, against the same cache manager
+        CountDownLatch checked = new CountDownLatch(1);
+        scheduler = new ExpirationBackfillScheduler(cacheManager, 1, REAPER_INTERVAL_MS, k -> {
+            checked.countDown();
+            return -1L;
+        });
+        Assert.assertFalse(scheduler.isScheduled(key));
+        Assert.assertEquals(0, scheduler.size());
+
+        Assert.assertTrue(scheduler.schedule(key, System.currentTimeMillis() + 100L));
+        Assert.assertTrue(checked.await(5, TimeUnit.SECONDS));
+        // the deadline of the closed scheduler is gone with it
+        Thread.sleep(2 * MARGIN_MS);
+        Assert.assertEquals(0, closedCount.get());
+    }
+
+    private void waitForSize(int expected) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000L;
+        while (scheduler.size() != expected && System.currentTimeMillis() < timeout) {
+            Thread.sleep(REAPER_INTERVAL_MS);
+        }
+        Assert.assertEquals(expected, scheduler.size());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+import org.hawkular.metrics.core.service.MetricsService;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import rx.Observable;
+
+/**
+ * @author Joel Takvorian
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class FeedAvailabilityRegistryTest {
+
+    private static final long REFRESH_PERIOD_MS = 10000L;
+
+    @Mock
+    private MetricsService metricsService;
+
+    /**
+     * The number of registrations read from inventory, each reading the metric types of its feed first.
+     */
+    private final AtomicInteger reads = new AtomicInteger();
+
+    private final List<CacheKey> keys = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < 100; i++) {
+            keys.add(new CacheKey("t1", BackfillCacheManager.FEED_PREFIX + "feed-" + i));
+        }
+        // the reads never complete, they hold on to their share of the registry
+        when(metricsService.findMetricsWithFilters(anyString(), anyObject(), anyString()))
+                .thenAnswer(invocationOnMock -> {
+                    reads.incrementAndGet();
+                    return Observable.never();
+                });
+    }
+
+    private void ping(FeedAvailabilityRegistry registry, long now) {
+        keys.forEach(key -> registry.refreshIfStale(key, now, () -> metricsService));
+    }
+
+    @Test
+    public void shouldSpreadFirstRegistrationsOverRefreshPeriod() {
+        FeedAvailabilityRegistry registry = new FeedAvailabilityRegistry(REFRESH_PERIOD_MS, keys.size());
+        long now = System.currentTimeMillis();
+
+        // all of the feeds armed at once, e.g. on startup
+        ping(registry, now);
+        Assert.assertTrue("Registered at once: " + reads.get(), reads.get() < 5);
+
+        ping(registry, now + (REFRESH_PERIOD_MS / 2));
+        Assert.assertTrue("Registered by half of the period: " + reads.get(), reads.get() > 25 && reads.get() < 75);
+
+        ping(registry, now + REFRESH_PERIOD_MS);
+        Assert.assertEquals(keys.size(), reads.get());
+        Assert.assertEquals(keys.size(), registry.size());
+    }
+
+    @Test
+    public void shouldCapConcurrentRegistrations() {
+        FeedAvailabilityRegistry registry = new FeedAvailabilityRegistry(REFRESH_PERIOD_MS, 2);
+        long now = System.currentTimeMillis();
+        ping(registry, now);
+
+        // all due, only two are read, the others are left to their next ping
+        ping(registry, now + REFRESH_PERIOD_MS);
+        Assert.assertEquals(2, reads.get());
+        ping(registry, now + 2 * REFRESH_PERIOD_MS);
+        Assert.assertEquals(2, reads.get());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hawkular.listener.cache.BackfillCacheManager.CacheKey;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Joel Takvorian
+ */
+public class HashedWheelBackfillSchedulerTest {
+
+    private static final long TICK_MS = 10L;
+
+    /**
+     * Way longer than any scheduling hiccup of a loaded machine, so that the schedules and cancels never race a check.
+     */
+    private static final long MARGIN_MS = 1000L;
+
+    private final CacheKey key = new CacheKey("tenant", BackfillCacheManager.FEED_PREFIX + "feed");
+
+    private HashedWheelBackfillScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if (null != scheduler) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldCheckFeedWhenDeadlineComesDue() throws InterruptedException {
+        CountDownLatch checked = new CountDownLatch(1);
+        List<Long> checkTimes = new CopyOnWriteArrayList<>();
+        scheduler = new HashedWheelBackfillScheduler(1, TICK_MS, 8, k -> {
+            checkTimes.add(System.currentTimeMillis());
+            checked.countDown();
+            return -1L;
+        });
+
+        long deadline = System.currentTimeMillis() + 100L;
+        Assert.assertTrue(scheduler.schedule(key, deadline));
+        Assert.assertTrue(scheduler.isScheduled(key));
+
+        Assert.assertTrue(checked.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue("Checked before deadline", checkTimes.get(0) >= deadline);
+        waitForSize(0);
+        Assert.assertFalse(scheduler.isScheduled(key));
+    }
+
+    @Test
+    public void shouldHandleDeadlinesBeyondOneWheelRound() throws InterruptedException {
+        CountDownLatch checked = new CountDownLatch(1);
+        List<Long> checkTimes = new CopyOnWriteArrayList<>();
+        // 4 buckets of 10ms, the deadline is several rounds away
+        scheduler = new HashedWheelBackfillScheduler(1, TICK_MS, 4, k -> {
+            checkTimes.add(System.currentTimeMillis());
+            checked.countDown();
+            return -1L;
+        });
+
+        long deadline = System.currentTimeMillis() + 200L;
+        scheduler.schedule(key, deadline);
+
+        Assert.assertTrue(checked.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue("Checked before deadline", checkTimes.get(0) >= deadline);
+    }
+
+    @Test
+    public void shouldRescheduleOnNextDeadline() throws InterruptedException {
+        CountDownLatch checked = new CountDownLatch(3);
+        AtomicInteger count = new AtomicInteger();
+        scheduler = new HashedWheelBackfillScheduler(1, TICK_MS, 8, k -> {
+            checked.countDown();
+            return count.incrementAndGet() < 3 ? System.currentTimeMillis() + 20L : -1L;
+        });
+
+        scheduler.schedule(key, System.currentTimeMillis());
+
+        Assert.assertTrue(checked.await(5, TimeUnit.SECONDS));
+        waitForSize(0);
+        Assert.assertEquals(3, count.get());
+    }
+
+    @Test
+    public void shouldNotCheckCancelledFeed() throws InterruptedException {
+        AtomicInteger count = new AtomicInteger();
+        scheduler = new HashedWheelBackfillScheduler(1, TICK_MS, 8, k -> {
+            count.incrementAndGet();
+            return -1L;
+        });
+
+        scheduler.schedule(key, System.currentTimeMillis() + MARGIN_MS);
+        Assert.assertTrue(scheduler.cancel(key));
+        Assert.assertFalse(scheduler.cancel(key));
+        Assert.assertFalse(scheduler.isScheduled(key));
+
+        // past the cancelled deadline
+        Thread.sleep(2 * MARGIN_MS);
+        Assert.assertEquals(0, count.get());
+    }
+
+    @Test
+    public void shouldIgnoreAlreadyScheduledFeed() throws InterruptedException {
+        CountDownLatch checked = new CountDownLatch(1);
+        AtomicInteger count = new AtomicInteger();
+        scheduler = new HashedWheelBackfillScheduler(1, TICK_MS, 8, k -> {
+            count.incrementAndGet();
+            checked.countDown();
+            return -1L;
+        });
+
+        Assert.assertTrue(scheduler.schedule(key, System.currentTimeMillis() + MARGIN_MS));
+        Assert.assertFalse(scheduler.schedule(key, System.currentTimeMillis() + MARGIN_MS));
+        Assert.assertEquals(1, scheduler.size());
+
+        Assert.assertTrue(checked.await(5 * MARGIN_MS, TimeUnit.MILLISECONDS));
+        Thread.sleep(20 * TICK_MS);
+        Assert.assertEquals(1, count.get());
+    }
+
+    private void waitForSize(int expected) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000L;
+        while (scheduler.size() != expected && System.currentTimeMillis() < timeout) {
+            Thread.sleep(TICK_MS);
+        }
+        Assert.assertEquals(expected, scheduler.size());
+    }
+}
@@ -16,12 +16,18 @@
  */
 package org.hawkular.listener.cache;
 
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collection;
@@ -29,6 +35,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPOutputStream;
 
@@ -60,6 +67,8 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 
 import rx.Observable;
+import rx.Subscription;
+import rx.schedulers.Schedulers;
 
 /**
  * @author Joel Takvorian
@@ -76,6 +85,9 @@ public class InventoryHelperTest {
     @Before
     public void setUp() {
         InventoryJacksonConfig.configure(mapper);
+        InventoryHelper.invalidateInventoryCache();
+        // the assertions expect the inventories parsed by the time subscribe returns
+        InventoryHelper.parseOn(Schedulers.immediate());
     }
 
     @Test
@@ -136,11 +148,10 @@ public class InventoryHelperTest {
         long currentTime = System.currentTimeMillis();
         when(metricsService.findMetricsWithFilters(anyString(), anyObject(), anyString()))
                 .thenAnswer(invocationOnMock -> Observable.just(m1, m2));
-        when(metricsService.findStringData(m1.getMetricId(), 0, currentTime, false, 0, Order.DESC))
+        when(metricsService.findStringData(m1.getMetricId(), 0, currentTime, false, 1, Order.DESC))
                 .thenReturn(Observable.just(
-                        buildMetricTypeDatapoint(currentTime - 500, "metricType1", "metric type 1"),
-                        buildMetricTypeDatapoint(currentTime - 1000, "oldMetricType1", "old metric type 1")));
-        when(metricsService.findStringData(m2.getMetricId(), 0, currentTime, false, 0, Order.DESC))
+                        buildMetricTypeDatapoint(currentTime - 500, "metricType1", "metric type 1")));
+        when(metricsService.findStringData(m2.getMetricId(), 0, currentTime, false, 1, Order.DESC))
                 .thenReturn(Observable.just(buildMetricTypeDatapoint(currentTime - 100000, "metricType2", "metric type 2")));
 
         // Test & assertions
@@ -180,8 +191,10 @@ public class InventoryHelperTest {
                 tempDataPoint.getTimestamp(),
                 tempDataPoint.getValue(),
                 ImmutableMap.<String, String>builder().put("chunks", "3").put("size", "1000").build());
-        when(metricsService.findStringData(m1.getMetricId(), 0, currentTime, false, 0, Order.DESC))
+        when(metricsService.findStringData(m1.getMetricId(), 0, currentTime, false, 1, Order.DESC))
                 .thenReturn(Observable.just(dataPoint));
+        when(metricsService.findStringData(m1.getMetricId(), currentTime - 502, currentTime - 500, false, 2,
+                Order.DESC)).thenReturn(Observable.empty());
 
         // Test & assertions
         AtomicReference<Throwable> refException = new AtomicReference<>();
@@ -206,9 +219,10 @@ public class InventoryHelperTest {
                 tempDataPoint.getTimestamp(),
                 tempDataPoint.getValue(),
                 ImmutableMap.<String, String>builder().put("chunks", "3").put("size", "1000").build());
-        when(metricsService.findStringData(m1.getMetricId(), 0, currentTime, false, 0, Order.DESC))
-                .thenReturn(Observable.just(
-                        dataPoint,
+        when(metricsService.findStringData(m1.getMetricId(), 0, currentTime, false, 1, Order.DESC))
+                .thenReturn(Observable.just(dataPoint));
+        when(metricsService.findStringData(m1.getMetricId(), currentTime - 502, currentTime - 500, false, 2,
+                Order.DESC)).thenReturn(Observable.just(
                         buildMetricTypeDatapoint(currentTime - 501, "metricType1", "metric type 1"),
                         buildMetricTypeDatapoint(currentTime - 800, "metricType1", "metric type 1")));
 
@@ -223,6 +237,134 @@ public class InventoryHelperTest {
                         "Inventory sanity check failure: chunk n°2 timestamp is"));
     }
 
+    @Test
+    public void shouldFailFastOnListMetricTypesWhenInventoryIsTooLarge() {
+        // Data & mocks
+        Metric<String> m1 = new Metric<>("inventory.123.mt.m1", null, 7, MetricType.STRING, null);
+        long currentTime = System.currentTimeMillis();
+        when(metricsService.findMetricsWithFilters(anyString(), anyObject(), anyString()))
+                .thenAnswer(invocationOnMock -> Observable.just(m1));
+        DataPoint<String> tempDataPoint = buildMetricTypeDatapoint(currentTime - 500, "metricType1", "metric type 1");
+        DataPoint<String> dataPoint = new DataPoint<>(
+                tempDataPoint.getTimestamp(),
+                tempDataPoint.getValue(),
+                ImmutableMap.<String, String>builder().put("chunks", "3").put("size", "999999999999").build());
+        when(metricsService.findStringData(m1.getMetricId(), 0, currentTime, false, 1, Order.DESC))
+                .thenReturn(Observable.just(dataPoint));
+
+        // Test & assertions
+        AtomicReference<Throwable> refException = new AtomicReference<>();
+        InventoryHelper.listMetricTypes(metricsService, "tenant", "feed", currentTime)
+                .toList()
+                .subscribe(a -> {}, refException::set);
+        Assert.assertEquals(InvalidInventoryChunksException.class, refException.get().getCause().getClass());
+        Assert.assertTrue("Unexpected message: " + refException.get().getCause().getMessage(),
+                refException.get().getCause().getMessage().contains("Inventory too large"));
+        // the followers are never read
+        verify(metricsService, times(1)).findStringData(anyObject(), anyLong(), anyLong(), anyBoolean(), anyInt(),
+                anyObject());
+    }
+
+    @Test
+    public void shouldListMetricTypesFromLatestChunksOnly() {
+        // Data & mocks
+        Metric<String> m1 = new Metric<>("inventory.123.mt.m1", null, 7, MetricType.STRING, null);
+        long currentTime = System.currentTimeMillis();
+        long masterTime = currentTime - 500;
+        when(metricsService.findMetricsWithFilters(anyString(), anyObject(), anyString()))
+                .thenAnswer(invocationOnMock -> Observable.just(m1));
+        byte[] compressed = Base64.getDecoder().decode(
+                buildMetricTypeDatapoint(masterTime, "metricType1", "metric type 1").getValue());
+        Map<String, String> tags = ImmutableMap.<String, String>builder()
+                .put("chunks", "3")
+                .put("size", String.valueOf(compressed.length))
+                .build();
+        when(metricsService.findStringData(m1.getMetricId(), 0, currentTime, false, 1, Order.DESC))
+                .thenReturn(Observable.just(
+                        new DataPoint<>(masterTime, encoder.encodeToString(Arrays.copyOfRange(compressed, 0, 10)),
+                                tags)));
+        when(metricsService.findStringData(m1.getMetricId(), masterTime - 2, masterTime, false, 2, Order.DESC))
+                .thenReturn(Observable.just(
+                        new DataPoint<>(masterTime - 1, encoder.encodeToString(
+                                Arrays.copyOfRange(compressed, 10, 20))),
+                        new DataPoint<>(masterTime - 2, encoder.encodeToString(
+                                Arrays.copyOfRange(compressed, 20, compressed.length)))));
+
+        // Test & assertions
+        List<org.hawkular.inventory.api.model.MetricType.Blueprint> collected = new CopyOnWriteArrayList<>();
+        InventoryHelper.listMetricTypes(metricsService, "tenant", "feed", currentTime)
+                .toList()
+                .subscribe(collected::addAll, Throwables::propagate);
+        Assert.assertEquals(1, collected.size());
+        Assert.assertEquals("metricType1", collected.get(0).getId());
+    }
+
+    @Test
+    public void shouldListMetricTypesFromCacheUntilNewerMaster() {
+        // Data & mocks
+        Metric<String> m1 = new Metric<>("inventory.123.mt.m1", null, 7, MetricType.STRING, null);
+        long currentTime = System.currentTimeMillis();
+        when(metricsService.findMetricsWithFilters(anyString(), anyObject(), anyString()))
+                .thenAnswer(invocationOnMock -> Observable.just(m1));
+        when(metricsService.findStringData(m1.getMetricId(), 0, currentTime, false, 1, Order.DESC))
+                .thenReturn(Observable.just(
+                        buildMetricTypeDatapoint(currentTime - 500, "metricType1", "metric type 1")));
+
+        // Test & assertions
+        long hits = InventoryHelper.getInventoryCacheStats().hitCount();
+        List<org.hawkular.inventory.api.model.MetricType.Blueprint> collected = new CopyOnWriteArrayList<>();
+        InventoryHelper.listMetricTypes(metricsService, "tenant", "feed", currentTime)
+                .toList()
+                .subscribe(collected::addAll, Throwables::propagate);
+        InventoryHelper.listMetricTypes(metricsService, "tenant", "feed", currentTime)
+                .toList()
+                .subscribe(collected::addAll, Throwables::propagate);
+        Assert.assertEquals(2, collected.size());
+        Assert.assertEquals(collected.get(0).getId(), collected.get(1).getId());
+        Assert.assertEquals(hits + 1, InventoryHelper.getInventoryCacheStats().hitCount());
+
+        // A newer master replaces the cached inventory
+        when(metricsService.findStringData(m1.getMetricId(), 0, currentTime, false, 1, Order.DESC))
+                .thenReturn(Observable.just(
+                        buildMetricTypeDatapoint(currentTime - 100, "metricType2", "metric type 2")));
+        collected.clear();
+        InventoryHelper.listMetricTypes(metricsService, "tenant", "feed", currentTime)
+                .toList()
+                .subscribe(collected::addAll, Throwables::propagate);
+        Assert.assertEquals(1, collected.size());
+        Assert.assertEquals("metricType2", collected.get(0).getId());
+    }
+
+    @Test
+    public void shouldBoundInventoryFetchesAcrossReads() {
+        // Data & mocks
+        long currentTime = System.currentTimeMillis();
+        when(metricsService.findMetricsWithFilters(anyString(), anyObject(), anyString()))
+                .thenAnswer(invocationOnMock -> Observable.just(new Metric<>(
+                        "inventory.123.mt." + invocationOnMock.getArgumentAt(0, String.class), null, 7,
+                        MetricType.STRING, null)));
+        AtomicInteger fetches = new AtomicInteger();
+        // the masters are never read, each fetch holds on to its permit
+        when(metricsService.findStringData(anyObject(), anyLong(), anyLong(), anyBoolean(), anyInt(), anyObject()))
+                .thenAnswer(invocationOnMock -> {
+                    fetches.incrementAndGet();
+                    return Observable.never();
+                });
+
+        // Test & assertions
+        List<Subscription> reads = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            reads.add(InventoryHelper.listMetricTypes(metricsService, "tenant" + i, "feed", currentTime)
+                    .subscribe(a -> {}, Throwables::propagate));
+        }
+        // the default inventory-max-concurrency, shared by all of the reads
+        Assert.assertEquals(8, fetches.get());
+
+        // each read gives its permit to the next waiting one
+        reads.forEach(Subscription::unsubscribe);
+        Assert.assertEquals(20, fetches.get());
+    }
+
     @Test
     public void shouldListMetricsForType() {
         // Data & mocks
@@ -235,11 +377,10 @@ public class InventoryHelperTest {
                 .thenAnswer(invocationOnMock -> Observable.just(r1, r2));
         // Each call to "buildRootResourceDatapointWithMetrics" will create a root resource
         //  that contains 2 metrics of type "metricType1" and 1 metric of type "metricType2"
-        when(metricsService.findStringData(r1.getMetricId(), 0, currentTime, false, 0, Order.DESC))
+        when(metricsService.findStringData(r1.getMetricId(), 0, currentTime, false, 1, Order.DESC))
                 .thenReturn(Observable.just(
-                        buildRootResourceDatapointWithMetrics(tenant, feed, currentTime - 500, "r1"),
-                        buildRootResourceDatapointWithMetrics(tenant, feed, currentTime - 1000, "r1")));
-        when(metricsService.findStringData(r2.getMetricId(), 0, currentTime, false, 0, Order.DESC))
+                        buildRootResourceDatapointWithMetrics(tenant, feed, currentTime - 500, "r1")));
+        when(metricsService.findStringData(r2.getMetricId(), 0, currentTime, false, 1, Order.DESC))
                 .thenReturn(Observable.just(
                         buildRootResourceDatapointWithMetrics(tenant, feed, currentTime - 10000, "r2")));
         org.hawkular.inventory.api.model.MetricType.Blueprint bp
@@ -264,6 +405,52 @@ public class InventoryHelperTest {
         Assert.assertEquals("metric2", collected.get(3).getId());
     }
 
+    @Test
+    public void shouldListMetricsByTypeInSinglePass() {
+        // Data & mocks
+        String tenant = "tenant";
+        String feed = "feed";
+        Metric<String> r1 = new Metric<>("inventory.123.r.r1", null, 7, MetricType.STRING, null);
+        Metric<String> r2 = new Metric<>("inventory.123.r.r2", null, 7, MetricType.STRING, null);
+        long currentTime = System.currentTimeMillis();
+        when(metricsService.findMetricsWithFilters(tenant, MetricType.STRING, "module:inventory,feed:feed,type:r"))
+                .thenAnswer(invocationOnMock -> Observable.just(r1, r2));
+        when(metricsService.findStringData(r1.getMetricId(), 0, currentTime, false, 1, Order.DESC))
+                .thenReturn(Observable.just(
+                        buildRootResourceDatapointWithMetrics(tenant, feed, currentTime - 500, "r1")));
+        when(metricsService.findStringData(r2.getMetricId(), 0, currentTime, false, 1, Order.DESC))
+                .thenReturn(Observable.just(
+                        buildRootResourceDatapointWithMetrics(tenant, feed, currentTime - 10000, "r2")));
+        List<org.hawkular.inventory.api.model.MetricType.Blueprint> metricTypes = Lists.newArrayList(
+                org.hawkular.inventory.api.model.MetricType.Blueprint
+                        .builder(MetricDataType.GAUGE)
+                        .withId("metricType1")
+                        .withName("Metric type 1")
+                        .withInterval(60L)
+                        .withUnit(MetricUnit.BYTES)
+                        .build(),
+                org.hawkular.inventory.api.model.MetricType.Blueprint
+                        .builder(MetricDataType.GAUGE)
+                        .withId("metricType2")
+                        .withName("Metric type 2")
+                        .withInterval(60L)
+                        .withUnit(MetricUnit.BYTES)
+                        .build());
+
+        // Test & assertions
+        AtomicReference<Map<String, List<org.hawkular.inventory.api.model.Metric.Blueprint>>> collected
+                = new AtomicReference<>();
+        InventoryHelper.listMetricsByType(metricsService, tenant, feed, metricTypes, currentTime)
+                .subscribe(collected::set, Throwables::propagate);
+        Assert.assertEquals(2, collected.get().size());
+        Assert.assertEquals(4, collected.get().get("metricType1").size());
+        Assert.assertEquals(2, collected.get().get("metricType2").size());
+        Assert.assertEquals("metric3", collected.get().get("metricType2").get(0).getId());
+        // Each resource inventory is read once for all the metric types
+        verify(metricsService, times(1)).findStringData(r1.getMetricId(), 0, currentTime, false, 1, Order.DESC);
+        verify(metricsService, times(1)).findStringData(r2.getMetricId(), 0, currentTime, false, 1, Order.DESC);
+    }
+
     @Test
     public void shouldListNoMetricsForType() {
         // Data & mocks
@@ -298,7 +485,7 @@ public class InventoryHelperTest {
         long currentTime = System.currentTimeMillis();
         when(metricsService.findMetricsWithFilters(anyString(), anyObject(), anyString()))
                 .thenAnswer(invocationOnMock -> Observable.just(r1));
-        when(metricsService.findStringData(r1.getMetricId(), 0, currentTime, false, 0, Order.DESC))
+        when(metricsService.findStringData(r1.getMetricId(), 0, currentTime, false, 1, Order.DESC))
                 .thenReturn(Observable.just(
                         buildRootResourceDatapointWithoutMetric(currentTime - 500, "r1")));
         org.hawkular.inventory.api.model.MetricType.Blueprint bp
@@ -332,8 +519,10 @@ public class InventoryHelperTest {
                 tempDataPoint.getTimestamp(),
                 tempDataPoint.getValue(),
                 ImmutableMap.<String, String>builder().put("chunks", "3").put("size", "1000").build());
-        when(metricsService.findStringData(r1.getMetricId(), 0, currentTime, false, 0, Order.DESC))
+        when(metricsService.findStringData(r1.getMetricId(), 0, currentTime, false, 1, Order.DESC))
                 .thenReturn(Observable.just(dataPoint));
+        when(metricsService.findStringData(r1.getMetricId(), currentTime - 502, currentTime - 500, false, 2,
+                Order.DESC)).thenReturn(Observable.empty());
         org.hawkular.inventory.api.model.MetricType.Blueprint bp
                 = org.hawkular.inventory.api.model.MetricType.Blueprint
                 .builder(MetricDataType.GAUGE)
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.listener.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.hawkular.inventory.api.model.ExtendedInventoryStructure;
+import org.hawkular.inventory.api.model.InventoryStructure;
+import org.hawkular.inventory.api.model.Metric;
+import org.hawkular.inventory.api.model.Resource;
+import org.hawkular.inventory.json.InventoryJacksonConfig;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * @author Joel Takvorian
+ */
+public class LazyInventoryTest {
+
+    private final ObjectMapper mapper = new ObjectMapper(new JsonFactory());
+
+    @Before
+    public void setUp() {
+        InventoryJacksonConfig.configure(mapper);
+    }
+
+    @Test
+    public void shouldGetMetricsByTypeWithoutFullStructure() throws IOException {
+        LazyInventory inv = read(buildResourceWithMetrics());
+
+        Map<String, List<Metric.Blueprint>> byType = inv.getMetricsByType(Arrays.asList("metricType2",
+                "metricType1", "unknown"));
+        Assert.assertEquals(Arrays.asList("metricType2", "metricType1", "unknown"),
+                byType.keySet().stream().collect(Collectors.toList()));
+        Assert.assertEquals(Collections.singletonList("metric3"), ids(byType.get("metricType2")));
+        Assert.assertEquals(Arrays.asList("metric1", "metric2"), ids(byType.get("metricType1")));
+        Assert.assertEquals("Metric 2", byType.get("metricType1").get(1).getName());
+        Assert.assertTrue(byType.get("unknown").isEmpty());
+        Assert.assertFalse(inv.isFullyRead());
+    }
+
+    @Test
+    public void shouldGetRootWithoutFullStructure() throws IOException {
+        LazyInventory inv = read(buildResourceWithMetrics());
+
+        Assert.assertTrue(inv.getRoot() instanceof Resource.Blueprint);
+        Assert.assertEquals("resource", inv.getRoot().getId());
+        Assert.assertFalse(inv.isFullyRead());
+    }
+
+    @Test
+    public void shouldWeighRetainedMetricsOnly() throws IOException {
+        LazyInventory all = read(buildResourceWithMetrics());
+        // same JSON but for the index, a single metric is retained
+        LazyInventory one = read(buildResourceWithMetrics(ImmutableMap.of("metricType1",
+                ImmutableList.of("m;metric1"))));
+
+        Assert.assertTrue(one.getRetainedBytes() > 0L);
+        Assert.assertTrue(one.getRetainedBytes() + " >= " + all.getRetainedBytes(),
+                one.getRetainedBytes() < all.getRetainedBytes());
+        Assert.assertFalse(one.isFullyRead());
+    }
+
+    @Test
+    public void shouldReadResourceWithoutMetric() throws IOException {
+        Resource.Blueprint bp = Resource.Blueprint.builder()
+                .withId("resource")
+                .withName("Resource")
+                .build();
+        LazyInventory inv = read(new ExtendedInventoryStructure(InventoryStructure.Offline.of(bp).build()));
+
+        Assert.assertEquals("resource", inv.getRoot().getId());
+        Assert.assertTrue(inv.getMetricsByType(Collections.singleton("metricType1")).get("metricType1").isEmpty());
+        Assert.assertFalse(inv.isFullyRead());
+    }
+
+    private LazyInventory read(ExtendedInventoryStructure ext) throws IOException {
+        return LazyInventory.read(mapper, new ByteArrayInputStream(mapper.writeValueAsBytes(ext)));
+    }
+
+    private static List<String> ids(List<Metric.Blueprint> metrics) {
+        return metrics.stream().map(Metric.Blueprint::getId).collect(Collectors.toList());
+    }
+
+    private static ExtendedInventoryStructure buildResourceWithMetrics() {
+        return buildResourceWithMetrics(ImmutableMap.of(
+                "metricType1", ImmutableList.of("m;metric1", "m;metric2"),
+                "metricType2", ImmutableList.of("m;metric3")));
+    }
+
+    private static ExtendedInventoryStructure buildResourceWithMetrics(
+            Map<String, Collection<String>> metricTypesIndex) {
+        Resource.Blueprint bp = Resource.Blueprint.builder()
+                .withId("resource")
+                .withName("Resource")
+                .build();
+        InventoryStructure.Builder builder = InventoryStructure.Offline.of(bp);
+        for (int i = 1; i <= 3; i++) {
+            builder.addChild(Metric.Blueprint.builder()
+                    .withId("metric" + i)
+                    .withName("Metric " + i)
+                    .withMetricTypePath("/t;tenant/f;feed/mt;metricType" + (i < 3 ? 1 : 2))
+                    .build());
+        }
+        return new ExtendedInventoryStructure(builder.build(), ImmutableMap.of(), metricTypesIndex);
+    }
+}